@@ -12,17 +12,19 @@ import shared.Email;
 import shared.Message;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.stream.Collectors;
 
 /**
  * data-model to visualize inbox, log in and send new E-mail
@@ -35,12 +37,27 @@ public class Mailbox {
     private final SimpleStringProperty sender;
     private final SimpleStringProperty username;
     private final SimpleStringProperty password;
-    private Socket connection = null;
-    private long lastUpdateEpoch;
+    private Session session = null;
+    private String cursor = ""; //position in the mailbox on the server of the last update, empty before the first one
     private String hash = null;
     private ObjectProperty<Image> onlineStatus = null;
     private ArrayList<Email> sendingQueue = null;
-    private ArrayList<String> deletionQueue = null;
+    private ArrayList<Long> deletionQueue = null;
+    private Timer updateTimer = null;
+    private long busyUntil = 0; //the server is overloaded, nothing is sent before this time
+    private int busyRetries = 0; //busy answers in a row, the wait doubles at each one
+    private boolean stale = false; //an update was refused or skipped, the next sync asks for it again
+    private final Random jitter = new Random();
+    private static final int MAX_BACKOFF_DOUBLINGS = 6;
+    private static final int MAX_BODIES = 200; //bodies kept in memory, the list has only the headers of the mails
+    //bodies of the mails opened or pushed by the ID, in access order: the least recently read is dropped and fetched again if needed
+    private final LinkedHashMap<Long, String> bodies = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+            return size() > MAX_BODIES;
+        }
+    };
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
     public Mailbox() {
         username = new SimpleStringProperty();
@@ -71,13 +88,13 @@ public class Mailbox {
         }
         byte[] hashInBytes = md.digest(password.getBytes());
 
-        //bytes to hex
-        StringBuilder sb = new StringBuilder();
-        for (byte b : hashInBytes) {
-            sb.append(String.format("%02x", b));
+        //bytes to hex, two digits for each byte
+        char[] hex = new char[hashInBytes.length * 2];
+        for (int i = 0; i < hashInBytes.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(hashInBytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[hashInBytes[i] & 0xf];
         }
-        String passwordHashed = sb.toString();
-        return passwordHashed;
+        return new String(hex);
     }
 
     /**
@@ -85,46 +102,30 @@ public class Mailbox {
      */
     public boolean login() {
         hash = hashPass(password.get());
-        Timer updateTimer = new Timer(true);
-        ObjectInputStream in = null;
-        ObjectOutputStream out = null;
+        updateTimer = new Timer(true);
+        session = new Session("127.0.0.1", 8080, getUsername(), hash);
+        session.listHeaders();
+        //the server pushes the new mails as soon as they arrive, the session subscribes every time it's opened
+        session.setListener(this::pushed);
         try {
-            connection = new Socket("127.0.0.1", 8080);
-            System.out.println("connected to " + connection.toString());
-            try {
-                in = new ObjectInputStream(connection.getInputStream());
-                out = new ObjectOutputStream(connection.getOutputStream());
-
-                out.writeObject(new Message(getUsername(), hash, "auth"));
-                if (!((Message) in.readObject()).isError()){
-                    //wait for the emails stored in the server
-                    try {
-                        received.addAll(((Message) in.readObject()).getEmails());
-                        onlineStatus.setValue(new Image("img/status-online.png"));
-                        lastUpdateEpoch = System.currentTimeMillis() / 1000L;
-                        updateTimer.schedule(new Updater(), 10000, 10000);
-
-                    } catch (ClassNotFoundException e) {
-                        e.printStackTrace();
-                    }
-                    return true;
-                }else {
-                    System.err.println("bad credentials");
-                    return false;
-                }
-
-            } catch (IOException e) {
-                errorPopUp("cannot establish connection with the server");
-                System.err.println("cannot establish connection with the server\n" + e.getMessage());
-            } catch (ClassNotFoundException e) {
-                e.printStackTrace();
-            } finally {
-                if (in != null && out != null) {
-                    in.close();
-                    out.close();
-                }
-                connection.close();
+            if (!session.open()) {
+                System.err.println("bad credentials");
+                return false;
             }
+            //the first sync gets the newest page of the mailbox, shown at once; the older pages are loaded after
+            Message response = session.request(new Message(getUsername(), "", "sync", ""));
+            if (response.isError()) {
+                errorPopUp(response.getText());
+                return false;
+            }
+            addPage(response);
+            if (response.getArgument() != null)
+                loadPages(response.getArgument());
+            onlineStatus.setValue(new Image("img/status-online.png"));
+            updateTimer.schedule(new Updater(), 10000, 10000);
+            return true;
+        } catch (ServerBusyException e) {
+            errorPopUp("the server is busy, retry in a few seconds");
         } catch (IOException e) {
             errorPopUp("cannot establish connection with the server");
             System.err.println("cannot establish connection with the server\n" + e.getMessage());
@@ -136,50 +137,178 @@ public class Mailbox {
     //start inbox action
 
     /**
-     * ask the server for every new mail arrived to your inbox after your last update, automaticaly updates the time of your last update
+     * ask the server for every new mail arrived to your inbox after your last update, and the ones deleted meanwhile
+     * (maybe by another client of the same user), automaticaly updates the cursor of your last update
      *
      * @return
      */
     public boolean update() {
         boolean updated;
-        Message response;
+        if (waitingServer()) {
+            stale = true;
+            return false;
+        }
         try {
-            //open a new connection and ask the server for an update
-            connection = new Socket("127.0.0.1", 8080);
-            ObjectInputStream in = new ObjectInputStream(connection.getInputStream());
-            ObjectOutputStream out = new ObjectOutputStream(connection.getOutputStream());
-            out.writeObject(new Message(getUsername(), hash, "update"));
-            out.writeObject(new Message(getUsername(), hash, String.valueOf(lastUpdateEpoch)));
-            try {
-                //analyze the response, if the response is an error or it's missing show to the user the offline status
-                response = (Message) in.readObject();
-                if (response.isError())
-                    errorPopUp(response.getText());
-                else{
-                    received.addAll(response.getEmails());
-                    onlineStatus.setValue(new Image("img/status-online.png"));
-                    //update the time of the last successful update
-                    lastUpdateEpoch = System.currentTimeMillis() / 1000L;
-                }
-            } catch (ClassNotFoundException e) {
-                e.printStackTrace();
+            //ask the server for an update on the session connection, opened again if it was lost
+            Message response = session.request(new Message(getUsername(), "", "update", cursor));
+            //analyze the response, if the response is an error or it's missing show to the user the offline status
+            if (response.isError())
+                errorPopUp(response.getText());
+            else{
+                applyChanges(response);
+                onlineStatus.setValue(new Image("img/status-online.png"));
+                busyRetries = 0;
             }
             updated=true;
+        } catch (ServerBusyException e) {
+            backoff(e);
+            updated=false;
         } catch (IOException e) {
             //server unreachable
             System.err.println("tried update " + e.getMessage());
             onlineStatus.setValue(new Image("img/status-offline.png"));
             updated=false;
-        }finally {
-            if (connection != null) {
+        }
+        return updated;
+    }
+
+    /**
+     * a message pushed by the server on the reader thread of the session: a new mail, or a hint to ask for it with an update
+     */
+    private void pushed(Message push) {
+        Platform.runLater(() -> {
+            if (push.getEmails() != null && push.getEmails().length > 0)
+                addNew(push.getEmails());
+            else
+                update();
+        });
+    }
+
+    /**
+     * applies the response of an update: the deleted mails are removed (or the ones not in the mailbox anymore, if the
+     * server can't tell the deletes after our cursor), the new ones added, and the cursor moved after them
+     */
+    private void applyChanges(Message response) {
+        String text = response.getText() == null ? "" : response.getText();
+        boolean live = text.startsWith("live:");
+        if (live || text.startsWith("deleted:")) {
+            HashSet<Long> IDs = Arrays.stream(text.substring(text.indexOf(':') + 1).split(","))
+                    .filter(id -> !id.isEmpty()).map(Long::parseLong).collect(Collectors.toCollection(HashSet::new));
+            received.removeIf(mail -> IDs.contains(mail.getID()) != live);
+        }
+        addNew(response.getEmails());
+        if (response.getArgument() != null)
+            cursor = response.getArgument();
+    }
+
+    /**
+     * adds the mails not in the list yet on top of it, the newest first; a mail can come both pushed and in an update
+     *
+     * @param mails in the order they arrived
+     */
+    private void addNew(Email[] mails) {
+        HashSet<Long> known = received.stream().map(Email::getID).collect(Collectors.toCollection(HashSet::new));
+        for (Email mail : mails)
+            if (known.add(mail.getID()))
+                received.add(0, header(mail));
+    }
+
+    /**
+     * the list keeps only the header of a mail, a body that came with it goes in the cache of the bodies
+     */
+    private Email header(Email mail) {
+        if (mail.isHeader())
+            return mail;
+        bodies.put(mail.getID(), mail.getBody());
+        return mail.header();
+    }
+
+    /**
+     * the body of a mail of the list, asked to the server if it's not in the cache
+     *
+     * @return null if it can't be fetched, the user is told why
+     */
+    private String bodyOf(Email mail) {
+        if (!mail.isHeader())
+            return mail.getBody();
+        String cached = bodies.get(mail.getID());
+        if (cached != null)
+            return cached;
+        try {
+            Message response = session.request(new Message(getUsername(), "", "fetch", String.valueOf(mail.getID())));
+            if (response.isError()) {
+                errorPopUp(response.getText());
+                return null;
+            }
+            for (Email fetched : response.getEmails())
+                if (fetched.getID() == mail.getID()) {
+                    bodies.put(fetched.getID(), fetched.getBody());
+                    return fetched.getBody();
+                }
+            errorPopUp("the email was deleted");
+        } catch (ServerBusyException e) {
+            backoff(e);
+            errorPopUp("the server is busy, retry in a few seconds");
+        } catch (IOException e) {
+            System.err.println("tried fetch " + e.getMessage());
+            errorPopUp("cannot establish connection with the server");
+            onlineStatus.setValue(new Image("img/status-offline.png"));
+        }
+        return null;
+    }
+
+    /**
+     * adds a page of the first sync at the bottom of the list, its mails are older than the ones already shown.
+     * The first page has the cursor for the updates, taken before the mails arrived meanwhile
+     */
+    private void addPage(Message page) {
+        if (page.getText() != null && !page.getText().isEmpty())
+            cursor = page.getText();
+        HashSet<Long> known = received.stream().map(Email::getID).collect(Collectors.toCollection(HashSet::new));
+        ArrayList<Email> older = new ArrayList<>();
+        for (Email mail : page.getEmails())
+            if (known.add(mail.getID()))
+                older.add(header(mail));
+        received.addAll(older);
+    }
+
+    /**
+     * asks the older pages of the mailbox one after the other on its own thread, so the user sees the newest mails
+     * while the others arrive; only a page at a time is in memory before being added to the list.
+     * If the server is busy or unreachable the same page is asked again later
+     *
+     * @param continuation of the second page
+     */
+    private void loadPages(String continuation) {
+        Thread loader = new Thread(() -> {
+            String next = continuation;
+            while (next != null) {
                 try {
-                    connection.close();
+                    Message page = session.request(new Message(getUsername(), "", "sync", next));
+                    if (page.isError()) {
+                        System.err.println("cannot load the mailbox: " + page.getText());
+                        return;
+                    }
+                    next = page.getArgument();
+                    Platform.runLater(() -> addPage(page));
+                } catch (ServerBusyException e) {
+                    pause(e.getRetryAfter() + (long) (jitter.nextDouble() * e.getRetryAfter()));
                 } catch (IOException e) {
-                    System.err.println("cannot close connection with the server\n" + e.getMessage());
+                    System.err.println("tried loading the mailbox " + e.getMessage());
+                    pause(10000);
                 }
             }
+        }, "mailbox-sync");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        return updated;
     }
 
     /**
@@ -187,23 +316,26 @@ public class Mailbox {
      *
      * @param id the id of the mail that needs to be shown
      */
-    public void read(String id) {
+    public void read(long id) {
         Email selected = null;
         //find the email
         for (Email email : received) {
-            if (email.getID().equals(id)) {
+            if (email.getID() == id) {
                 selected = email;
                 break;
             }
         }
         if (selected == null) //mail doesn't exist
             return;
+        String text = bodyOf(selected);
+        if (text == null)
+            return;
 
         if (!selected.getReceivers().contains(username.getValue()))
             selected.getReceivers().add(username.getValue());
         //mail exist, set the properties
         receivers.setValue(String.join(" ", selected.getReceivers()));
-        body.setValue(selected.getBody());
+        body.setValue(text);
         sender.setValue(selected.getSender());
         subject.setValue(selected.getSubject());
     }
@@ -215,18 +347,19 @@ public class Mailbox {
      *
      * @param id the id of the mail that needs to be forwarded
      */
-    public void forward(String id) {
+    public void forward(long id) {
         Email selected = null;
         for (Email email : received) {
-            if (email.getID().equals(id)) {
+            if (email.getID() == id) {
                 selected = email;
                 break;
             }
         }
-        if (selected == null)
+        String text = selected == null ? null : bodyOf(selected);
+        if (text == null)
             return;
         subject.setValue("forward: " + selected.getSubject());
-        body.setValue("mail fowarded from " + selected.getSender() + "\n=======================\n" + selected.getBody());
+        body.setValue("mail fowarded from " + selected.getSender() + "\n=======================\n" + text);
     }
 
     /**
@@ -237,15 +370,16 @@ public class Mailbox {
      * @param id  the id if the email
      * @param all specifies if the client wants to reply to the sender or to every receiver (reply all)
      */
-    public void reply(String id, boolean all) {
+    public void reply(long id, boolean all) {
         Email selected = null;
         for (Email email : received) {
-            if (email.getID().equals(id)) {
+            if (email.getID() == id) {
                 selected = email;
                 break;
             }
         }
-        if (selected == null)
+        String text = selected == null ? null : bodyOf(selected);
+        if (text == null)
             return;
         //the email exist and now is in the variable selected
 
@@ -257,7 +391,7 @@ public class Mailbox {
         }
         receivers.setValue(replyTo);
         subject.setValue("reply: " + selected.getSubject());
-        body.setValue(selected.getSender() + " in date " + selected.getDate() + " wrote\n\n" + selected.getBody());
+        body.setValue(selected.getSender() + " in date " + selected.getDate() + " wrote\n\n" + text);
     }
 
     /**
@@ -266,26 +400,32 @@ public class Mailbox {
      * @param ids          an array of ids of the emails
      * @param reconnection is this the first time the program is trying to delete the mail? or this is an automatic reconnection?
      */
-    public void delete(String[] ids, boolean reconnection) {
-        ArrayList<String> idList = new ArrayList<>(Arrays.asList(ids));
+    public void delete(long[] ids, boolean reconnection) {
+        HashSet<Long> idList = new HashSet<>();
+        for (long id : ids)
+            idList.add(id);
         if (!reconnection)  // the mail can't be deleted during a reconnection because the thread is not a javaFX component
             received.removeIf(x -> idList.contains(x.getID()));
+        if (waitingServer()) { //deleted with the next sync
+            deletionQueue.addAll(idList);
+            return;
+        }
         try {
-            //connect to the server and send a message with all the IDs of the mail you want to delete
-            connection = new Socket("127.0.0.1", 8080);
-            ObjectInputStream in = new ObjectInputStream(connection.getInputStream());
-            ObjectOutputStream out = new ObjectOutputStream(connection.getOutputStream());
-            out.writeObject(new Message(getUsername(), hash, "delete"));
-            out.writeObject(new Message(getUsername(), hash, String.join(",", ids)));
+            //send a message with all the IDs of the mail you want to delete
+            Message response = session.request(new Message(getUsername(), "", "delete",
+                    Arrays.stream(ids).mapToObj(String::valueOf).collect(Collectors.joining(","))));
 
             //if the message is an error surely the problem is in the IDs sent, throw a exception, else remove those mail from the model
-            if (((Message) in.readObject()).isError() && !reconnection)//if it's a reconnection we don't want any error message
+            if (response.isError() && !reconnection)//if it's a reconnection we don't want any error message
                 throw new IOException("something went wrong with the IDs");
 
 
             if (reconnection)
                 deletionQueue.clear();
 
+        } catch (ServerBusyException e) {
+            deletionQueue.addAll(idList);
+            backoff(e);
         } catch (IOException e) {
             //server is unreachable
             System.err.println(e.getMessage());
@@ -295,19 +435,40 @@ public class Mailbox {
             }
             onlineStatus.setValue(new Image("img/status-offline.png"));
             //add IDs to the deletion queue, will be deleted when reconnected
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-        } finally {
-            if (connection != null) {
-                try {
-                    connection.close();
-                } catch (IOException e) {
-                    System.err.println("cannot close connection with the server\n" + e.getMessage());
-                }
-            }
         }
 
     }
+    /**
+     * asks the server which mails contain all the given words, in subject, body or sender
+     *
+     * @param query words to search
+     * @return the IDs of the matching mails, null if the search failed
+     */
+    public long[] search(String query) {
+        long[] IDs = null;
+        if (waitingServer()) {
+            errorPopUp("the server is busy, retry in a few seconds");
+            return null;
+        }
+        try {
+            Message response = session.request(new Message(getUsername(), "", "search", query));
+            if (response.isError()) {
+                errorPopUp(response.getText());
+            } else {
+                //the IDs are separated by commas, an empty text means no result
+                IDs = Arrays.stream(response.getText().split(",")).filter(id -> !id.isEmpty()).mapToLong(Long::parseLong).toArray();
+                onlineStatus.setValue(new Image("img/status-online.png"));
+            }
+        } catch (ServerBusyException e) {
+            backoff(e);
+            errorPopUp("the server is busy, retry in a few seconds");
+        } catch (IOException e) {
+            System.err.println("tried search " + e.getMessage());
+            errorPopUp("cannot establish connection with the server");
+            onlineStatus.setValue(new Image("img/status-offline.png"));
+        }
+        return IDs;
+    }
     //end inbox action
 
     /**
@@ -329,28 +490,26 @@ public class Mailbox {
 
         //prepare a DTF to translate from Epoch to a date format human readable
         DateTimeFormatter dtf = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss");
-        Email email = new Email(addresses, getSubject(), getBody(), dtf.format(LocalDateTime.now()), getUsername(), ""); // create a new email from the information presents in the properties
+        Email email = new Email(addresses, getSubject(), getBody(), dtf.format(LocalDateTime.now()), getUsername(), 0); // create a new email from the information presents in the properties
 
-        ObjectOutputStream out = null;
-        ObjectInputStream in = null;
-        String hash = hashPass(password.get());
         boolean send = true;
+        if (waitingServer()) { //sent with the next sync
+            sendingQueue.add(email);
+            errorPopUp("the server is busy, the mail will be sent in a few seconds");
+            return true;
+        }
         try {
-            //open a new connection and prepare the server to receive the mail (first put it in a message)
-            connection = new Socket("127.0.0.1", 8080);
-            System.out.println("connected to " + connection.toString() + "to send a new mail");
-            in = new ObjectInputStream(connection.getInputStream());
-            out = new ObjectOutputStream(connection.getOutputStream());
-            out.writeObject(new Message(getUsername(), hash, "send"));
-
             // put the email inside a message and send it
-            out.writeObject(new Message(getUsername(), hash, "send", email));
-            Message response = (Message) in.readObject();
+            Message response = session.request(new Message(getUsername(), "", "send", email));
             if (response.isError()) {
                 //the client tried to send email to unknown users.
                 send = false;
                 errorPopUp(response.getText() + "\nother eventual recipient have received the email");
             }
+        } catch (ServerBusyException e) {
+            sendingQueue.add(email);
+            backoff(e);
+            errorPopUp("the server is busy, the mail will be sent in a few seconds");
         } catch (IOException e){
             System.err.println("cannot establish connection with the server\n" + e.getMessage());
             errorPopUp("cannot establish connection with the server");
@@ -358,76 +517,83 @@ public class Mailbox {
             //add the email to rhe resending queue
             sendingQueue.add(email);
 
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-        } finally {
-            if (connection != null){
-                try {
-                    if (in != null && out != null) {
-                        in.close();
-                        out.close();
-                    }
-                    connection.close();
-                } catch (IOException | NullPointerException e) {
-                    System.err.println("cannot close connection with the server\n" + e.getMessage());
-                }
-            }
         }
         return send;
     }
 
-    public void sendMails(Email [] emails, boolean reconnection){
-        int errors = 0;
-        ObjectOutputStream out = null;
-        ObjectInputStream in = null;
-        String hash = hashPass(password.get());
+    /**
+     * sends to the server in one batch the deletes and the mails queued while it was unreachable, together with an update:
+     * a single round trip, however long the queues are
+     *
+     * @return false if the server is still unreachable
+     */
+    private boolean sync() {
+        Email[] sending = sendingQueue.toArray(Email[]::new);
+        long[] deleting = deletionQueue.stream().mapToLong(Long::longValue).toArray();
+        ArrayList<Message> operations = new ArrayList<>();
+        if (deleting.length > 0)
+            operations.add(new Message(getUsername(), "", "delete", Arrays.stream(deleting).mapToObj(String::valueOf).collect(Collectors.joining(","))));
+        for (Email email : sending)
+            operations.add(new Message(getUsername(), "", "send", email));
+        operations.add(new Message(getUsername(), "", "update", cursor));
+        Message batch = new Message(getUsername(), "", "batch");
+        batch.setOperations(operations.toArray(new Message[0]));
         try {
-            //open a new connection and prepare the server to receive the mail (first put it in a message)
-            connection = new Socket("127.0.0.1", 8080);
-            System.out.println("connected to " + connection.toString() + "to send a new mail");
-            in = new ObjectInputStream(connection.getInputStream());
-            out = new ObjectOutputStream(connection.getOutputStream());
-
-            for (Email email: emails) {
-                out.writeObject(new Message(getUsername(), hash, "send",email));
-                out.writeObject(new Message(getUsername(), hash, "send", email));
-                Message response = (Message) in.readObject();
-
-                sendingQueue.remove(email);
-                if (response.isError()) {
-                    //the client tried to send email to unknown users.
-                    errors ++;
-                }
+            Message response = session.request(batch);
+            Message[] responses = response.getOperations();
+            if (response.isError() || responses == null || responses.length != operations.size()) {
+                errorPopUp(response.getText());
+                return true;
             }
-
-            if (errors != 0){
+            //the server executed every operation, the queues are done even if some of them failed
+            deletionQueue.clear();
+            sendingQueue.removeAll(Arrays.asList(sending));
+            int errors = 0;
+            for (int i = deleting.length > 0 ? 1 : 0; i < responses.length - 1; i++)
+                if (responses[i].isError()) //the client tried to send email to unknown users.
+                    errors++;
+            if (errors != 0)
                 errorPopUp(errors + " mails couldn't be when the server came back online, unknown email address");
+            Message update = responses[responses.length - 1];
+            if (!update.isError()) {
+                applyChanges(update);
+                stale = false;
             }
-
-        } catch (IOException e){
-            if (!reconnection) {
-                System.err.println("cannot establish connection with the server\n" + e.getMessage());
-                errorPopUp("cannot establish connection with the server");
-            }
+            onlineStatus.setValue(new Image("img/status-online.png"));
+            busyRetries = 0;
+            return true;
+        } catch (ServerBusyException e) {
+            backoff(e);
+            return false;
+        } catch (IOException e) {
+            System.err.println("tried sync " + e.getMessage());
             onlineStatus.setValue(new Image("img/status-offline.png"));
-
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-        } finally {
-            if (connection != null){
-                try {
-                    if (in != null && out != null) {
-                        in.close();
-                        out.close();
-                    }
-                    connection.close();
-                } catch (IOException | NullPointerException e) {
-                    System.err.println("cannot close connection with the server\n" + e.getMessage());
-                }
-            }
+            return false;
         }
     }
 
+    /**
+     * @return true if the server asked to wait and the time isn't over yet
+     */
+    private boolean waitingServer() {
+        return System.currentTimeMillis() < busyUntil;
+    }
+
+    /**
+     * the server refused a request because it's overloaded: nothing is sent for the time it asked, doubled at every
+     * refusal in a row, plus a random part up to as much again, so the clients refused together don't come back together.
+     * A sync is scheduled for then, with what was queued meanwhile
+     */
+    private void backoff(ServerBusyException busy) {
+        long wait = busy.getRetryAfter() << Math.min(busyRetries++, MAX_BACKOFF_DOUBLINGS);
+        wait += (long) (jitter.nextDouble() * wait);
+        busyUntil = System.currentTimeMillis() + wait;
+        stale = true;
+        System.err.println(busy.getMessage() + ", retrying in " + wait + " ms");
+        onlineStatus.setValue(new Image("img/status-offline.png"));
+        updateTimer.schedule(new Updater(), wait);
+    }
+
     /**
      * shows an error popUp, stop the app until ok button is clicked
      *
@@ -513,18 +679,20 @@ public class Mailbox {
     class Updater extends TimerTask {
         @Override
         public void run() {
+            try {
+                //a session only waiting for the pushes sends nothing, without the ping the server would close it as idle
+                session.keepAlive();
+            } catch (IOException e) {
+                //the session is lost, the sync opens it again
+            }
             Platform.runLater(new Runnable() { //runLater is necessary to make changes to the view from a non-JavaFX thread
                 public void run() {
-                    boolean updated = update();
-                    /*in pratica se il client riesce a fare un update (ecco perchè la variabile updated) controlla che non ci siano mail da inviare
-                     * o mail da eliminare in coda, se ci sono preoccupati di lanciare i due metodi delete e sendMail con il boolean reconnection = true
-                     * A questo punto se hanno successo pulisci le due code. Se le due code sono vuote.....non fare nulla*/
-                    if (updated) {
-                        if (deletionQueue.size() > 0)
-                            delete(deletionQueue.toArray(String[]::new), true);
-                        if (sendingQueue.size() > 0)
-                            sendMails(sendingQueue.toArray(Email[]::new), true);
-                    }
+                    //the new mails are pushed while the session is open, the timer only opens it again when it's lost or
+                    //something is queued or an update was refused, never before the time asked by a busy server.
+                    //The sync sends the queues with an update from the cursor, the mails already pushed come again and are skipped
+                    if (waitingServer() || session.isOpen() && deletionQueue.isEmpty() && sendingQueue.isEmpty() && !stale)
+                        return;
+                    sync();
                 }
             });
         }
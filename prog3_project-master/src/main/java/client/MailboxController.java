@@ -1,24 +1,30 @@
 package client;
 
+import javafx.collections.transformation.FilteredList;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.control.ListView;
 import javafx.scene.control.SelectionMode;
+import javafx.scene.control.TextField;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.Pane;
 import shared.Email;
 
 import java.io.IOException;
+import java.util.HashSet;
 
 public class MailboxController {
     private Mailbox model = null;
     private ReadMailController controller = null;
+    private FilteredList<Email> shownMails = null;
 
     @FXML
     private ListView<Email> mailList;
     @FXML
     private ImageView onlineStatus;
     @FXML
+    private TextField searchField;
+    @FXML
     private Pane readOrSend;
     private Pane incomingMail;
 
@@ -44,7 +50,7 @@ public class MailboxController {
         readOrSend.getChildren().clear();
         if (mailList.getSelectionModel().getSelectedItems().size() == 0)
             return; //no item selected, do nothing
-        model.delete(mailList.getSelectionModel().getSelectedItems().stream().map(Email::getID).toArray(String[]::new), false);
+        model.delete(mailList.getSelectionModel().getSelectedItems().stream().mapToLong(Email::getID).toArray(), false);
         //another stream, gets all the IDs from selected mail and passes them to model.delete as an array
     }
 
@@ -56,11 +62,30 @@ public class MailboxController {
         readOrSend.getChildren().clear();
         if (mailList.getSelectionModel().getSelectedItems().size() == 0)
             return;//no item selected, do nothing
-        String id = mailList.getSelectionModel().getSelectedItem().getID(); //in this case the only id returned is the one of the last mail selected
+        long id = mailList.getSelectionModel().getSelectedItem().getID(); //in this case the only id returned is the one of the last mail selected
         handleNewMail();
         model.forward(id);
     }
 
+    /**
+     * enter pressed in the search field, shows only the mails found by the server, an empty search shows every mail
+     */
+    @FXML
+    private void handleSearch() {
+        String query = searchField.getText().trim();
+        if (query.isEmpty()) {
+            shownMails.setPredicate(null);
+            return;
+        }
+        long[] IDs = model.search(query);
+        if (IDs == null)
+            return; //search failed, the list stays as it is
+        HashSet<Long> found = new HashSet<>();
+        for (long id : IDs)
+            found.add(id);
+        shownMails.setPredicate(mail -> found.contains(mail.getID()));
+    }
+
     /**
      * clicked on a Email,therefore the new view needs to be loaded
      */
@@ -79,7 +104,8 @@ public class MailboxController {
         this.model = model;
 
         mailList.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE); //allows you to select multiple emails at the same time
-        mailList.setItems(model.getReceived());//takes the list of emails received and shows them
+        shownMails = new FilteredList<>(model.getReceived());
+        mailList.setItems(shownMails);//takes the list of emails received and shows them, filtered by the last search
         onlineStatus.imageProperty().bind(model.onlineStatusProperty());
 
         //loads the EmailReaderController and loads the newMail Pane, the view doesn't have to be created every time the user wants to read a mail
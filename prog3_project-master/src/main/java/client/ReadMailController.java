@@ -20,7 +20,7 @@ public class ReadMailController {
     @FXML
     private TextArea Body;
     private Pane view;
-    private String mailID;
+    private long mailID;
     NewMailController controller;
     Pane newMail;
 
@@ -29,7 +29,7 @@ public class ReadMailController {
      */
     @FXML
     public void handleDelete() {
-        model.delete(new String[]{mailID}, false);
+        model.delete(new long[]{mailID}, false);
         //close this view, go back to the Mailbox view
         view.getChildren().clear();
     }
@@ -75,7 +75,7 @@ public class ReadMailController {
         model.reply(mailID, true);
     }
 
-    public void init(Mailbox model, String ID, Pane view) throws IOException {
+    public void init(Mailbox model, long ID, Pane view) throws IOException {
         this.model = model;
         this.mailID = ID;
         this.view = view;
@@ -0,0 +1,21 @@
+package client;
+
+import java.io.IOException;
+
+/**
+ * the server didn't execute the request because it's overloaded, it can be sent again after retryAfter milliseconds
+ */
+class ServerBusyException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfter;
+
+    ServerBusyException(String message, long retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    long getRetryAfter() {
+        return retryAfter;
+    }
+}
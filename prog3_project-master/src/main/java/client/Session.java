@@ -0,0 +1,268 @@
+package client;
+
+import shared.FrameCompression;
+import shared.FrameStream;
+import shared.Message;
+import shared.WireCodec;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+
+/**
+ * connection to the server kept open for the whole session, every request of the client goes through it.
+ * Each request gets an ID that the server copies in the response, a reader thread hands every response to the request
+ * waiting for it, so more requests can be in flight on the same socket and answered in any order.
+ * The credentials are sent once, when the connection is opened; if it drops it's opened again by the next request,
+ * sending the token the server gave to the session instead of the credentials, until it expires.
+ * The messages are encoded with the binary codec, or with Java serialization if the server only knows that one.
+ * The big ones are compressed, if the server can decompress them: the first sync of a large mailbox is mostly text.
+ * With a listener the session subscribes to the new mails, every time it's opened: the server pushes them with request ID 0.
+ * An overloaded server answers busy instead of executing the request, request throws a ServerBusyException with the time to wait.
+ * A session opened with headers gets the mails of update and sync without their body, they are asked with fetch
+ */
+class Session {
+    private static final long TIMEOUT = 30; //seconds waited for a response
+    private static final WireCodec[] CODECS = {WireCodec.BINARY, WireCodec.SERIAL}; //in order of preference
+    private static final int COMPRESS_ABOVE = 1024; //bytes of a request from which it's compressed
+    private static final long DEFAULT_RETRY = 1000; //milliseconds to wait if the server is busy and doesn't say how long
+    private static final long HEARTBEAT = 60000; //milliseconds without requests after which keepAlive pings the server
+
+    private final String host, username, hash;
+    private final int port;
+    private final ConcurrentHashMap<Long, CompletableFuture<Message>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong lastId = new AtomicLong();
+    private Socket socket = null;
+    private FrameStream stream = null;
+    private volatile Consumer<Message> listener = null;
+    private volatile boolean headers = false; //asked at auth, a resumed session keeps it
+    private String token = null; //given by the server when the credentials are accepted, null before
+    private long ttl = 0; //milliseconds the token lasts unused
+    private volatile long lastUsed = 0; //when the last request was sent
+
+    /**
+     * @param host     address of the server
+     * @param port     port of the server
+     * @param username user of the session
+     * @param hash     hash of the user password
+     */
+    Session(String host, int port, String username, String hash) {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.hash = hash;
+    }
+
+    /**
+     * the mails are listed without their body from the next authentication, call it before open
+     */
+    void listHeaders() {
+        headers = true;
+    }
+
+    /**
+     * opens the connection and authenticates, does nothing if it's already open
+     *
+     * @return false if the server rejected the credentials
+     */
+    synchronized boolean open() throws IOException {
+        if (socket != null)
+            return true;
+        Socket socket = new Socket(host, port);
+        System.out.println("connected to " + socket.toString());
+        try {
+            FrameStream stream = FrameStream.connect(socket, new FrameCompression(COMPRESS_ABOVE, Deflater.DEFAULT_COMPRESSION), CODECS);
+            //the authentication is answered before starting the reader, nothing else is in flight yet
+            boolean resuming = token != null && System.currentTimeMillis() - lastUsed < ttl;
+            Message auth = resuming ? new Message(username, "", "resume", token) : new Message(username, hash, "auth", headers ? "headers" : null);
+            auth.setRequestId(lastId.incrementAndGet());
+            stream.write(auth);
+            Message answer = stream.read();
+            if (answer.isError()) {
+                socket.close();
+                ServerBusyException busy = busy(answer);
+                if (busy != null)
+                    throw busy;
+                token = null;
+                return resuming ? open() : false; //the token expired, the credentials are sent
+            }
+            String[] session = answer.getArgument() == null ? new String[0] : answer.getArgument().split(",");
+            if (session.length == 2) {
+                token = session[0];
+                ttl = Long.parseLong(session[1]);
+            }
+            lastUsed = System.currentTimeMillis();
+            if (listener != null) {
+                //answered when the reader is started, nothing waits for it: the push starts anyway
+                Message subscribe = new Message(username, "", "subscribe");
+                subscribe.setRequestId(lastId.incrementAndGet());
+                stream.write(subscribe);
+                pending.put(subscribe.getRequestId(), new CompletableFuture<>());
+            }
+            this.socket = socket;
+            this.stream = stream;
+            Thread reader = new Thread(() -> read(socket, stream), "session-reader");
+            reader.setDaemon(true);
+            reader.start();
+            return true;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * sends a request without waiting for its response, the connection is opened again if it was lost
+     *
+     * @return completes with the response, or exceptionally if the connection drops first
+     */
+    CompletableFuture<Message> send(Message request) throws IOException {
+        CompletableFuture<Message> response = new CompletableFuture<>();
+        synchronized (this) {
+            if (!open())
+                throw new IOException("wrong credentials");
+            long id = lastId.incrementAndGet();
+            request.setRequestId(id);
+            pending.put(id, response);
+            try {
+                stream.write(request);
+                lastUsed = System.currentTimeMillis();
+            } catch (IOException e) {
+                closed(socket);
+                throw e;
+            }
+        }
+        return response;
+    }
+
+    /**
+     * sends a request and waits for its response
+     *
+     * @throws ServerBusyException if the server didn't execute the request because it's overloaded
+     */
+    Message request(Message request) throws IOException {
+        return request(request, true);
+    }
+
+    /**
+     * @param retry if the session expired, the connection is opened again with the credentials and the request sent again
+     */
+    private Message request(Message request, boolean retry) throws IOException {
+        CompletableFuture<Message> response = send(request);
+        Message answer;
+        try {
+            answer = response.get(TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while waiting for the server");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            pending.remove(request.getRequestId());
+            throw new IOException("no response from the server");
+        }
+        ServerBusyException busy = busy(answer);
+        if (busy != null)
+            throw busy;
+        if (retry && answer.isError() && "session expired".equals(answer.getText())) {
+            synchronized (this) {
+                token = null;
+                if (socket != null)
+                    closed(socket);
+            }
+            return request(request, false);
+        }
+        return answer;
+    }
+
+    /**
+     * @return the exception telling how long to wait if the server answered it's busy, null for any other response
+     */
+    private static ServerBusyException busy(Message response) {
+        if (!response.isError() || response.getText() == null || !response.getText().startsWith("server busy"))
+            return null;
+        try {
+            return new ServerBusyException(response.getText(), Long.parseLong(response.getArgument()));
+        } catch (NumberFormatException e) {
+            return new ServerBusyException(response.getText(), DEFAULT_RETRY);
+        }
+    }
+
+    /**
+     * @param listener gets the messages pushed by the server, on the reader thread. Set before opening the session
+     */
+    void setListener(Consumer<Message> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * sends a ping if nothing was sent for HEARTBEAT, so the server doesn't close as idle a session that is only waiting
+     * for the pushes. The answer is not waited, only reading it keeps the session open
+     */
+    void keepAlive() throws IOException {
+        synchronized (this) {
+            if (socket == null || System.currentTimeMillis() - lastUsed < HEARTBEAT)
+                return;
+        }
+        send(new Message(username, "", "ping"));
+    }
+
+    synchronized boolean isOpen() {
+        return socket != null;
+    }
+
+    synchronized void close() {
+        if (socket != null)
+            closed(socket);
+    }
+
+    /**
+     * reads the responses until the connection is closed
+     */
+    private void read(Socket socket, FrameStream stream) {
+        try {
+            while (true) {
+                Message response = stream.read();
+                if (response.getRequestId() == 0) { //not a response, pushed by the server
+                    if (listener != null)
+                        listener.accept(response);
+                    continue;
+                }
+                CompletableFuture<Message> waiting = pending.remove(response.getRequestId());
+                if (waiting != null) //null if the request already timed out
+                    waiting.complete(response);
+            }
+        } catch (IOException e) {
+            closed(socket);
+        }
+    }
+
+    /**
+     * forgets a connection that dropped, the requests still waiting on it fail
+     */
+    private synchronized void closed(Socket dropped) {
+        if (socket != dropped)
+            return; //already replaced by a new connection
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("cannot close connection with the server\n" + e.getMessage());
+        }
+        if (stream.compression() != null)
+            stream.compression().close();
+        socket = null;
+        stream = null;
+        IOException lost = new IOException("connection with the server lost");
+        for (Long id : pending.keySet()) {
+            CompletableFuture<Message> waiting = pending.remove(id);
+            if (waiting != null)
+                waiting.completeExceptionally(lost);
+        }
+    }
+}
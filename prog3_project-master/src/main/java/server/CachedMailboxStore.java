@@ -0,0 +1,383 @@
+package server;
+
+import shared.Email;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MailboxStore that keeps in memory the parsed mailboxes of the most recent users, bounded by their total size in bytes.
+ * When the size is exceeded the least recently used mailbox is evicted. Every write goes through the cache and then to the
+ * underlying store, so the updates of the active users never touch the filesystem: the store tells which mails changed
+ * after a cursor from its index, without reading them, and the mails are taken from the cache
+ */
+class CachedMailboxStore implements MailboxStore {
+    private static final int LOCK_STRIPES = 64;
+
+    private final MailboxStore store;
+    private final long capacity;
+    private long size = 0;
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true); //access order, the eldest is the LRU
+    private final MailboxLocks locks = new MailboxLocks(LOCK_STRIPES); //not the ones of the store, they are held while calling it
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+    private final Set<String> tooBig = ConcurrentHashMap.newKeySet(); //mailboxes bigger than the cache, not loaded for the updates
+
+    /**
+     * @param store    store where the mailboxes are saved
+     * @param capacity maximum size of the cache in bytes
+     */
+    CachedMailboxStore(MailboxStore store, long capacity) {
+        this.store = store;
+        this.capacity = capacity;
+    }
+
+    @Override
+    public void create(String username) throws IOException {
+        store.create(username);
+    }
+
+    /**
+     * the mail is saved in the store for every receiver at once, then added to the cached mailboxes one user at a time.
+     * A mailbox loaded meanwhile may already contain the mail, so it's added only if it's missing
+     */
+    @Override
+    public void append(Collection<String> usernames, Email mail) throws IOException {
+        store.append(usernames, mail);
+        addToCache(usernames, mail);
+    }
+
+    @Override
+    public void appendAll(List<Collection<String>> usernames, List<Email> mails) throws IOException {
+        store.appendAll(usernames, mails);
+        for (int i = 0; i < mails.size(); i++)
+            addToCache(usernames.get(i), mails.get(i));
+    }
+
+    /**
+     * adds a mail just saved to the cached mailboxes of its receivers
+     */
+    private void addToCache(Collection<String> usernames, Email mail) {
+        for (String username : usernames) {
+            long stamp = locks.writeLock(username);
+            try {
+                synchronized (cache) {
+                    Entry entry = cache.get(username);
+                    if (entry != null && entry.add(mail)) {
+                        size += sizeOf(mail);
+                        evict();
+                    }
+                }
+            } finally {
+                locks.unlock(username, stamp);
+            }
+        }
+    }
+
+    /**
+     * most updates find nothing new, that is checked with an optimistic read of the cached mailbox, without locking it.
+     * A mailbox that doesn't fit in the cache is left to the store, as in changesSince
+     */
+    @Override
+    public List<Email> readSince(String username, long unixTime) throws IOException {
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.get(username);
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+            long stamp = locks.tryOptimisticRead(username);
+            if (!entry.hasSince(unixTime) && locks.validate(username, stamp))
+                return new ArrayList<>();
+            stamp = locks.readLock(username);
+            try {
+                return entry.since(unixTime);
+            } finally {
+                locks.unlock(username, stamp);
+            }
+        }
+        misses.incrementAndGet();
+        if (tooBig.contains(username))
+            return store.readSince(username, unixTime); //it would be read whole and not cached, the store reads the tail
+        long stamp = locks.writeLock(username);
+        try {
+            return load(username).since(unixTime);
+        } finally {
+            locks.unlock(username, stamp);
+        }
+    }
+
+    /**
+     * loads the whole mailbox and caches it if it fits, must be called holding the write lock of the user:
+     * no mail can be added or deleted meanwhile
+     */
+    private Entry load(String username) throws IOException {
+        Entry entry = new Entry();
+        long entrySize = 0;
+        for (Email mail : store.readSince(username, Long.MIN_VALUE)) {
+            entry.add(mail);
+            entrySize += sizeOf(mail);
+        }
+        synchronized (cache) {
+            if (entrySize <= capacity && !cache.containsKey(username)) {
+                cache.put(username, entry);
+                size += entrySize;
+                evict();
+            }
+        }
+        if (entrySize > capacity)
+            tooBig.add(username);
+        return entry;
+    }
+
+    /**
+     * the store finds the changes in its index, the new mails come from the cached mailbox, loaded if it's missing
+     * as readSince does: the client polling is active. A mailbox that doesn't fit in the cache is left to the store,
+     * it reads only the new mails
+     */
+    @Override
+    public MailboxChanges changesSince(String username, String cursor, boolean read) throws IOException {
+        if (!read || tooBig.contains(username))
+            return store.changesSince(username, cursor, read);
+        Entry entry = cached(username);
+        if (entry == null) {
+            long stamp = locks.writeLock(username);
+            try {
+                synchronized (cache) {
+                    entry = cache.get(username);
+                }
+                if (entry == null)
+                    entry = load(username);
+            } finally {
+                locks.unlock(username, stamp);
+            }
+        }
+        MailboxChanges changes = store.changesSince(username, cursor, false);
+        return new MailboxChanges(resolve(username, entry, changes.added), changes.added, changes.deleted, changes.live,
+                changes.cursor);
+    }
+
+    /**
+     * the pages are read once by each client, a mailbox not cached is not loaded for them: it would only push out of the
+     * cache the mailboxes read often. If it's cached the store only tells the IDs of the page
+     */
+    @Override
+    public MailboxPage page(String username, String continuation, int size, boolean read) throws IOException {
+        Entry entry = read ? cached(username) : null;
+        if (entry == null)
+            return store.page(username, continuation, size, read);
+        MailboxPage page = store.page(username, continuation, size, false);
+        return new MailboxPage(resolve(username, entry, page.ids), page.ids, page.next, page.cursor);
+    }
+
+    /**
+     * @return the cached mailbox of the user, null if it isn't
+     */
+    private Entry cached(String username) {
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.get(username);
+        }
+        (entry != null ? hits : misses).incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * the mails with the given IDs, taken from a cached mailbox. A mail just saved in the store may not be in the cache
+     * yet, and the mailbox may be evicted meanwhile: the mails missing are read from the store
+     *
+     * @param IDs found in the index of the store, in the order of the result
+     */
+    private List<Email> resolve(String username, Entry entry, List<Long> IDs) throws IOException {
+        ArrayList<Email> mails = new ArrayList<>(IDs.size());
+        ArrayList<Long> missing = new ArrayList<>();
+        long stamp = locks.readLock(username);
+        try {
+            for (long ID : IDs) {
+                Email mail = entry.byId.get(ID);
+                if (mail == null)
+                    missing.add(ID);
+                mails.add(mail);
+            }
+        } finally {
+            locks.unlock(username, stamp);
+        }
+        if (missing.isEmpty())
+            return mails;
+        HashMap<Long, Email> read = new HashMap<>();
+        for (Email mail : store.fetch(username, missing))
+            read.put(mail.getID(), mail);
+        ArrayList<Email> result = new ArrayList<>(IDs.size());
+        for (int i = 0; i < IDs.size(); i++) {
+            Email mail = mails.get(i) != null ? mails.get(i) : read.get(IDs.get(i));
+            if (mail != null) //deleted meanwhile
+                result.add(mail);
+        }
+        return result;
+    }
+
+    /**
+     * a mail opened by the client is most likely in a cached mailbox, its user is active; otherwise only the mails asked
+     * are read from the store, loading the whole mailbox to open one mail isn't worth it
+     */
+    @Override
+    public List<Email> fetch(String username, Collection<Long> IDs) throws IOException {
+        Entry entry = cached(username);
+        if (entry == null)
+            return store.fetch(username, IDs);
+        HashSet<Long> wanted = new HashSet<>(IDs);
+        ArrayList<Email> result = new ArrayList<>();
+        long stamp = locks.readLock(username);
+        try {
+            for (Email mail : entry.mails)
+                if (wanted.contains(mail.getID()))
+                    result.add(mail);
+        } finally {
+            locks.unlock(username, stamp);
+        }
+        return result;
+    }
+
+    /**
+     * the cache only holds the mails, the search index is kept by the store
+     */
+    @Override
+    public List<Long> search(String username, String query) throws IOException {
+        return store.search(username, query);
+    }
+
+    @Override
+    public int delete(String username, Collection<Long> IDs) throws IOException {
+        long stamp = locks.writeLock(username);
+        try {
+            int removed = store.delete(username, IDs);
+            tooBig.remove(username); //it may fit now
+            synchronized (cache) {
+                Entry entry = cache.get(username);
+                if (entry != null)
+                    size -= entry.remove(new HashSet<>(IDs));
+            }
+            return removed;
+        } finally {
+            locks.unlock(username, stamp);
+        }
+    }
+
+    @Override
+    public String stats() {
+        synchronized (cache) {
+            return "cache: " + cache.size() + " mailboxes, " + size / 1024 + "/" + capacity / 1024 + " KB, hits " + hits.get()
+                    + ", misses " + misses.get() + ", evictions " + evictions.get() + ", " + locks.stats() + "; " + store.stats();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (cache) {
+            cache.clear();
+            size = 0;
+        }
+        store.close();
+    }
+
+    /**
+     * removes the least recently used mailboxes until the cache fits its capacity, must be called holding the cache lock
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> eldest = cache.entrySet().iterator();
+        while (size > capacity && eldest.hasNext()) {
+            size -= eldest.next().getValue().size;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * rough estimate of the memory used by a mail: two bytes for every char plus the overhead of the objects
+     */
+    private static long sizeOf(Email mail) {
+        long chars = length(mail.getSubject()) + length(mail.getBody()) + length(mail.getDate()) + length(mail.getSender()) + 8;
+        for (String receiver : mail.getReceivers())
+            chars += length(receiver);
+        return 2 * chars + 64 * (6 + mail.getReceivers().size());
+    }
+
+    /**
+     * the fields of a mail can be null, the empty ones are written so in the segments
+     */
+    private static int length(String field) {
+        return field == null ? 0 : field.length();
+    }
+
+    /**
+     * parsed mailbox of a user, with an index of the dates to find the new mails with a binary search.
+     * Every access must hold the lock of the user, changes must hold the cache lock too
+     */
+    private static class Entry {
+        ArrayList<Email> mails = new ArrayList<>();
+        HashMap<Long, Email> byId = new HashMap<>();
+        TimeIndex times = new TimeIndex();
+        long size = 0;
+
+        /**
+         * @return false if the mail was already in the mailbox
+         */
+        boolean add(Email mail) {
+            if (byId.putIfAbsent(mail.getID(), mail) != null)
+                return false;
+            times.add(mail.getTimestamp(), mails.size());
+            mails.add(mail);
+            size += sizeOf(mail);
+            return true;
+        }
+
+        /**
+         * called during an optimistic read, it may see the mailbox while it changes: the result counts only if validated
+         */
+        boolean hasSince(long unixTime) {
+            try {
+                return times.hasSince(Math.max(unixTime, Long.MIN_VALUE / 1000) * 1000);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                return true;
+            }
+        }
+
+        List<Email> since(long unixTime) {
+            ArrayList<Email> result = new ArrayList<>();
+            for (int position : times.since(Math.max(unixTime, Long.MIN_VALUE / 1000) * 1000))
+                result.add(mails.get(position));
+            return result;
+        }
+
+        /**
+         * @return the memory freed
+         */
+        long remove(HashSet<Long> toRemove) {
+            long freed = 0;
+            int kept = 0;
+            times.clear();
+            for (int i = 0; i < mails.size(); i++) {
+                Email mail = mails.get(i);
+                if (toRemove.contains(mail.getID())) {
+                    byId.remove(mail.getID());
+                    freed += sizeOf(mail);
+                } else {
+                    times.add(mail.getTimestamp(), kept);
+                    mails.set(kept++, mail);
+                }
+            }
+            mails.subList(kept, mails.size()).clear();
+            size -= freed;
+            return freed;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package server;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * background thread that rewrites the mailboxes with too many deleted mails, so the Connection that deletes
+ * the mails never has to pay for the rewrite
+ */
+class Compactor implements Runnable {
+    private static final String STOP = "";
+    private final SegmentMailboxStore store;
+    private final LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    private final Set<String> scheduled = ConcurrentHashMap.newKeySet(); //a mailbox is queued at most once
+
+    Compactor(SegmentMailboxStore store) {
+        this.store = store;
+    }
+
+    /**
+     * @param username owner of the mailbox that needs to be compacted
+     */
+    void schedule(String username) {
+        if (scheduled.add(username))
+            queue.add(username);
+    }
+
+    void stop() {
+        queue.add(STOP);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            String username;
+            try {
+                username = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (username.equals(STOP))
+                return;
+            scheduled.remove(username);
+            try {
+                store.compact(username);
+            } catch (IOException e) {
+                System.err.println("cannot compact the mailbox of " + username + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * reference counts of the mails sent to more than one user. Those mails are saved only once, in the content segment
+ * (a segment of SegmentMailboxStore named CONTENT), and the mailboxes of the receivers only contain their ID.
+ * Every change of a count is appended to usersDir/content.ref, when a count reaches zero the last receiver has deleted
+ * the mail and it can be deleted from the content segment
+ */
+class ContentStore {
+    static final String CONTENT = "content"; //usernames are mail addresses, so no user can have this mailbox
+    private static final int ENTRY_SIZE = 12; //ID and references
+
+    private final Path refsPath;
+    private HashMap<Long, Integer> refs = null; //loaded the first time it's needed
+
+    /**
+     * @param refsPath file containing the reference counts
+     */
+    ContentStore(Path refsPath) {
+        this.refsPath = refsPath;
+    }
+
+    /**
+     * @param receivers how many mailboxes reference each new mail saved in the content segment, by ID
+     */
+    synchronized void add(Map<Long, Integer> receivers) throws IOException {
+        load();
+        ByteBuffer entries = ByteBuffer.allocate(receivers.size() * ENTRY_SIZE);
+        for (Map.Entry<Long, Integer> count : receivers.entrySet()) {
+            refs.put(count.getKey(), count.getValue());
+            entries.putLong(count.getKey()).putInt(count.getValue());
+        }
+        append(entries.flip());
+    }
+
+    /**
+     * @return true if the mail is saved in the content segment, so the mailboxes contain only its ID
+     */
+    synchronized boolean isShared(long id) throws IOException {
+        load();
+        return refs.containsKey(id);
+    }
+
+    /**
+     * removes a reference from the given mails, deleted by one of their receivers
+     *
+     * @param ids IDs of the mails, the ones not in the content segment are ignored
+     * @return the IDs of the mails that are not referenced anymore
+     */
+    synchronized List<Long> release(Collection<Long> ids) throws IOException {
+        load();
+        ArrayList<Long> unreferenced = new ArrayList<>();
+        ByteBuffer entries = ByteBuffer.allocate(ids.size() * ENTRY_SIZE);
+        for (long id : ids) {
+            Integer count = refs.get(id);
+            if (count == null)
+                continue;
+            entries.putLong(id).putInt(count - 1);
+            if (count == 1) {
+                refs.remove(id);
+                unreferenced.add(id);
+            } else {
+                refs.put(id, count - 1);
+            }
+        }
+        append(entries.flip());
+        return unreferenced;
+    }
+
+    /**
+     * rewrites the file with only the current counts, called when the content segment is compacted
+     */
+    synchronized void saveSnapshot() throws IOException {
+        load();
+        ByteBuffer entries = ByteBuffer.allocate(refs.size() * ENTRY_SIZE);
+        for (Map.Entry<Long, Integer> count : refs.entrySet())
+            entries.putLong(count.getKey()).putInt(count.getValue());
+        entries.flip();
+        Path tmp = refsPath.resolveSibling(refsPath.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            while (entries.hasRemaining())
+                channel.write(entries);
+            channel.force(false);
+        }
+        Files.move(tmp, refsPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * forces on disk the changes of the counts, called at the checkpoints of the WriteAheadLog
+     */
+    synchronized void sync() throws IOException {
+        if (!Files.exists(refsPath))
+            return;
+        try (FileChannel channel = FileChannel.open(refsPath, WRITE)) {
+            channel.force(false);
+        }
+    }
+
+    synchronized String stats() {
+        return "shared mails: " + (refs == null ? "not loaded" : refs.size());
+    }
+
+    /**
+     * reads the counts, the last entry of a mail is the current one
+     */
+    private void load() throws IOException {
+        if (refs != null)
+            return;
+        refs = new HashMap<>();
+        if (!Files.exists(refsPath))
+            return;
+        ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(refsPath));
+        while (entries.remaining() >= ENTRY_SIZE) {
+            long id = entries.getLong();
+            int count = entries.getInt();
+            if (count > 0)
+                refs.put(id, count);
+            else
+                refs.remove(id);
+        }
+    }
+
+    private void append(ByteBuffer entries) throws IOException {
+        if (!entries.hasRemaining())
+            return;
+        try (FileChannel channel = FileChannel.open(refsPath, CREATE, WRITE, APPEND)) {
+            while (entries.hasRemaining())
+                channel.write(entries);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * compressed segment (usersDir/username.csz): the same CSV records of a plain segment, stored as a sequence of frames.
+ * A frame is a block of blockSize bytes compressed with Deflater, or a batch of records appended as they are by the
+ * MailboxWriter; the raw frames are compressed later by seal, when the Compactor runs.
+ * The offsets in the index of the mailbox are positions in the uncompressed records, the table of the frames kept in
+ * memory translates them, so reading the new mails inflates only the blocks containing them
+ */
+class DeflateBlocks {
+    private static final int MAGIC = 0x4D424C4B; //"MBLK"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8; //magic and version
+    private static final int FRAME_HEADER = 9; //type, uncompressed length and stored length
+    private static final byte RAW = 0, DEFLATE = 1;
+    private static final int SEAL_BLOCKS = 4; //raw bytes, in blocks, after which the raw frames get compressed
+
+    private final Path file;
+    private long[] starts = new long[16], positions = new long[16]; //where each frame starts, uncompressed and in the file
+    private int[] lengths = new int[16], stored = new int[16];
+    private byte[] types = new byte[16];
+    private int count = 0;
+    private long length = 0; //uncompressed bytes
+    private long fileLength = HEADER_SIZE;
+    private long rawBytes = 0; //uncompressed bytes in raw frames
+    private volatile Inflated last = null; //last block inflated, reads of near records usually need it again
+
+    private DeflateBlocks(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * reads the table of the frames jumping from a frame header to the next one.
+     * An incomplete frame at the end of the file is a write interrupted by a crash, it gets cut away
+     */
+    static DeflateBlocks load(Path file) throws IOException {
+        DeflateBlocks blocks = new DeflateBlocks(file);
+        try (FileChannel channel = FileChannel.open(file, READ, WRITE)) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+            readAt(channel, header.limit(HEADER_SIZE), 0);
+            if (header.position() < HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                throw new IOException("corrupted mailbox " + file + ": not a compressed segment");
+            while (blocks.fileLength + FRAME_HEADER <= size) {
+                readAt(channel, header.clear(), blocks.fileLength);
+                header.flip();
+                byte type = header.get();
+                int length = header.getInt(), stored = header.getInt();
+                if (type != RAW && type != DEFLATE || length < 0 || stored < 0 || blocks.fileLength + FRAME_HEADER + stored > size)
+                    break;
+                blocks.add(type, length, stored);
+            }
+            if (blocks.fileLength < size)
+                channel.truncate(blocks.fileLength);
+        }
+        return blocks;
+    }
+
+    /**
+     * creates an empty compressed segment, replacing the file if it exists
+     */
+    static DeflateBlocks create(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            writeFully(channel, header());
+        }
+        return new DeflateBlocks(file);
+    }
+
+    /**
+     * appends a batch of records as a raw frame, with a single write
+     *
+     * @return the uncompressed offset of the first record
+     */
+    long append(ByteBuffer[] records, boolean sync) throws IOException {
+        int raw = 0;
+        for (ByteBuffer record : records)
+            raw += record.remaining();
+        ByteBuffer[] frame = new ByteBuffer[records.length + 1];
+        frame[0] = ByteBuffer.allocate(FRAME_HEADER).put(RAW).putInt(raw).putInt(raw).flip();
+        System.arraycopy(records, 0, frame, 1, records.length);
+        try (FileChannel channel = FileChannel.open(file, WRITE)) {
+            channel.position(fileLength);
+            while (frame[frame.length - 1].hasRemaining())
+                channel.write(frame);
+            if (sync)
+                channel.force(false);
+        }
+        long offset = length;
+        add(RAW, raw, raw);
+        return offset;
+    }
+
+    /**
+     * @return the uncompressed bytes between from and to, inflating only the frames containing them
+     */
+    byte[] read(long from, long to) throws IOException {
+        byte[] bytes = new byte[(int) (to - from)];
+        if (bytes.length == 0)
+            return bytes;
+        int frame = Arrays.binarySearch(starts, 0, count, from);
+        if (frame < 0)
+            frame = -frame - 2; //the frame starting before from
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            for (; frame < count && starts[frame] < to; frame++) {
+                byte[] content = frame(channel, frame);
+                long start = Math.max(from, starts[frame]), end = Math.min(to, starts[frame] + lengths[frame]);
+                System.arraycopy(content, (int) (start - starts[frame]), bytes, (int) (start - from), (int) (end - start));
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return true if the raw frames are enough to be worth compressing
+     */
+    boolean needsSealing(int blockSize) {
+        return rawBytes >= (long) SEAL_BLOCKS * blockSize;
+    }
+
+    /**
+     * compresses the raw frames: the compressed blocks are copied as they are in a new file, followed by the raw records
+     * compressed in blocks, then the new file replaces the old one. The uncompressed offsets don't change, so the index
+     * of the mailbox stays valid. Must be called holding the write lock of the segment
+     */
+    void seal(int blockSize) throws IOException {
+        int firstRaw = 0;
+        while (firstRaw < count && types[firstRaw] != RAW)
+            firstRaw++;
+        if (firstRaw == count)
+            return;
+        byte[] tail = read(starts[firstRaw], length);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel in = FileChannel.open(file, READ);
+             FileChannel out = FileChannel.open(tmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            long copied = 0, prefix = positions[firstRaw];
+            while (copied < prefix)
+                copied += in.transferTo(copied, prefix - copied, out);
+            Writer writer = new Writer(out, blockSize);
+            writer.add(tail);
+            writer.finish();
+            out.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        DeflateBlocks sealed = load(file);
+        starts = sealed.starts;
+        positions = sealed.positions;
+        lengths = sealed.lengths;
+        stored = sealed.stored;
+        types = sealed.types;
+        count = sealed.count;
+        fileLength = sealed.fileLength;
+        rawBytes = sealed.rawBytes;
+        last = null;
+    }
+
+    long length() {
+        return length;
+    }
+
+    long fileLength() {
+        return fileLength;
+    }
+
+    /**
+     * @return the uncompressed content of a frame
+     */
+    private byte[] frame(FileChannel channel, int frame) throws IOException {
+        Inflated cached = last;
+        if (cached != null && cached.frame == frame)
+            return cached.content;
+        ByteBuffer bytes = ByteBuffer.allocate(stored[frame]);
+        readAt(channel, bytes, positions[frame] + FRAME_HEADER);
+        if (bytes.hasRemaining())
+            throw new IOException("mailbox " + file + " is shorter than its frames");
+        if (types[frame] == RAW)
+            return bytes.array();
+        byte[] content = new byte[lengths[frame]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes.array());
+            int inflated = 0;
+            while (inflated < content.length && !inflater.finished()) {
+                int count = inflater.inflate(content, inflated, content.length - inflated);
+                //all the input is given at once, no progress means a truncated or damaged frame
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                inflated += count;
+            }
+            if (inflated < content.length)
+                throw new IOException("corrupted block in " + file + ": frame " + frame + " ends after " + inflated + " of " + content.length + " bytes");
+        } catch (DataFormatException e) {
+            throw new IOException("corrupted block in " + file + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        last = new Inflated(frame, content);
+        return content;
+    }
+
+    private void add(byte type, int length, int stored) {
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            positions = Arrays.copyOf(positions, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+            this.stored = Arrays.copyOf(this.stored, count * 2);
+            types = Arrays.copyOf(types, count * 2);
+        }
+        starts[count] = this.length;
+        positions[count] = fileLength;
+        lengths[count] = length;
+        this.stored[count] = stored;
+        types[count] = type;
+        count++;
+        this.length += length;
+        fileLength += FRAME_HEADER + stored;
+        if (type == RAW)
+            rawBytes += length;
+    }
+
+    private static ByteBuffer header() {
+        return ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip();
+    }
+
+    private static void readAt(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                return;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * writes records in compressed blocks of blockSize uncompressed bytes, a record can span two blocks.
+     * Used when a segment is rewritten or sealed
+     */
+    static class Writer {
+        private final FileChannel out;
+        private final byte[] block;
+        private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        private byte[] compressed;
+        private int filled = 0;
+
+        /**
+         * @param out channel positioned where the frames start, a new file gets the header first
+         */
+        Writer(FileChannel out, int blockSize) throws IOException {
+            this.out = out;
+            this.block = new byte[blockSize];
+            this.compressed = new byte[blockSize + blockSize / 8 + 64];
+            if (out.position() == 0)
+                writeFully(out, header());
+        }
+
+        void add(byte[] record) throws IOException {
+            int copied = 0;
+            while (copied < record.length) {
+                int chunk = Math.min(record.length - copied, block.length - filled);
+                System.arraycopy(record, copied, block, filled, chunk);
+                filled += chunk;
+                copied += chunk;
+                if (filled == block.length)
+                    flush();
+            }
+        }
+
+        /**
+         * writes the last, partial, block
+         */
+        void finish() throws IOException {
+            if (filled > 0)
+                flush();
+            deflater.end();
+        }
+
+        private void flush() throws IOException {
+            deflater.reset();
+            deflater.setInput(block, 0, filled);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == compressed.length)
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            writeFully(out, ByteBuffer.allocate(FRAME_HEADER).put(DEFLATE).putInt(filled).putInt(length).flip());
+            writeFully(out, ByteBuffer.wrap(compressed, 0, length));
+            filled = 0;
+        }
+    }
+
+    private static class Inflated {
+        final int frame;
+        final byte[] content;
+
+        Inflated(int frame, byte[] content) {
+            this.frame = frame;
+            this.content = content;
+        }
+    }
+}
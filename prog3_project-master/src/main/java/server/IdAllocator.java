@@ -0,0 +1,102 @@
+package server;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+import com.opencsv.exceptions.CsvException;
+
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * gives a unique ID to every mail. The IDs are reserved in blocks: before handing out the IDs of a block, its end is
+ * saved in the configuration file (mailLastId) and synced on disk. Inside a block the IDs are given from memory without
+ * locks, and after a crash the server restarts from the end of the last reserved block, so no ID is ever reused
+ */
+class IdAllocator {
+    private final Path configPath;
+    private final long blockSize;
+    private final AtomicLong next;
+    private volatile long reserved; //first ID not reserved yet
+
+    /**
+     * @param configPath path of the configuration file
+     * @param lastId     mailLastId read from the configuration file, the end of the last reserved block
+     * @param blockSize  how many IDs are reserved at once
+     */
+    IdAllocator(Path configPath, long lastId, long blockSize) {
+        this.configPath = configPath;
+        this.blockSize = blockSize;
+        this.next = new AtomicLong(lastId);
+        this.reserved = lastId;
+    }
+
+    /**
+     * @return a new ID, never returned before
+     */
+    long next() throws IOException {
+        long id = next.getAndIncrement();
+        while (id >= reserved)
+            reserve(id);
+        return id;
+    }
+
+    /**
+     * saves the first ID not given yet, so after a normal shutdown the rest of the block is not wasted.
+     * No ID can be requested after this
+     */
+    synchronized void close() throws IOException {
+        save(next.get());
+    }
+
+    /**
+     * reserves the blocks needed to give the requested ID, only one thread at a time writes the configuration
+     */
+    private synchronized void reserve(long id) throws IOException {
+        if (id < reserved)
+            return; //another thread already reserved it
+        long end = reserved + blockSize;
+        while (end <= id)
+            end += blockSize;
+        save(end);
+        reserved = end;
+    }
+
+    /**
+     * rewrites the configuration file with the new mailLastId, the new file is synced and then replaces the old one
+     */
+    private void save(long lastId) throws IOException {
+        List<String[]> configurations;
+        try (CSVReader reader = new CSVReader(new FileReader(configPath.toFile()))) {
+            configurations = reader.readAll();
+        } catch (CsvException e) {
+            throw new IOException(e.getMessage());
+        }
+        boolean found = false;
+        for (String[] config : configurations) {
+            if (config[0].equals("mailLastId")) {
+                config[1] = String.valueOf(lastId);
+                found = true;
+            }
+        }
+        if (!found) {
+            configurations = new ArrayList<>(configurations);
+            configurations.add(new String[]{"mailLastId", String.valueOf(lastId)});
+        }
+        Path tmp = configPath.resolveSibling(configPath.getFileName() + ".tmp");
+        FileOutputStream file = new FileOutputStream(tmp.toFile());
+        try (CSVWriter writer = new CSVWriter(new OutputStreamWriter(file), CSVWriter.DEFAULT_SEPARATOR, CSVWriter.NO_QUOTE_CHARACTER, CSVWriter.DEFAULT_ESCAPE_CHARACTER, CSVWriter.DEFAULT_LINE_END)) {
+            writer.writeAll(configurations);
+            writer.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, configPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
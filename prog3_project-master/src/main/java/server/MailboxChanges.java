@@ -0,0 +1,46 @@
+package server;
+
+import shared.Email;
+
+import java.util.List;
+
+/**
+ * what changed in a mailbox after a cursor, the answer of MailboxStore.changesSince.
+ * A cursor is "token.mails.deletes": the token of the mailbox index, the sequence number of the last mail and how
+ * many deletes the mailbox had, all known to the client. An empty cursor is the start of the mailbox
+ */
+class MailboxChanges {
+    final List<Email> mails; //the mails added after the cursor and not deleted, null if they were not read
+    final List<Long> added; //their IDs, in the order they arrived
+    final List<Long> deleted; //the IDs deleted after the cursor, null if the cursor is too old to tell them
+    final List<Long> live; //when deleted is null, the IDs of every mail in the mailbox: the client drops the others
+    final String cursor; //the cursor after these changes, for the next request
+
+    MailboxChanges(List<Email> mails, List<Long> added, List<Long> deleted, List<Long> live, String cursor) {
+        this.mails = mails;
+        this.added = added;
+        this.deleted = deleted;
+        this.live = live;
+        this.cursor = cursor;
+    }
+
+    static String cursor(long token, long lastSeq, long deletes) {
+        return Long.toHexString(token) + "." + lastSeq + "." + deletes;
+    }
+
+    /**
+     * @return token, sequence number of the last mail and deletes, null if the cursor is empty or malformed
+     */
+    static long[] parse(String cursor) {
+        if (cursor == null)
+            return null;
+        String[] parts = cursor.split("\\.");
+        if (parts.length != 3)
+            return null;
+        try {
+            return new long[]{Long.parseUnsignedLong(parts[0], 16), Long.parseLong(parts[1]), Long.parseLong(parts[2])};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
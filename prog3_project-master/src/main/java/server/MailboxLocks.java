@@ -0,0 +1,129 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * locks of the mailboxes, shared by the threads of the server. The usernames are spread over a fixed number of stripes,
+ * each one a StampedLock, so the memory used doesn't grow with the users and locking a mailbox never needs a syscall.
+ * Two users on the same stripe simply share the lock.
+ * The locks are not reentrant: a thread must never hold the lock of two mailboxes at the same time
+ */
+class MailboxLocks {
+    private static final int BUSIEST = 3; //stripes listed in the stats
+
+    private final StampedLock[] stripes;
+    private final AtomicLongArray acquired, contended, waitNanos, optimistic, failed;
+
+    /**
+     * @param stripes number of locks, a power of two
+     */
+    MailboxLocks(int stripes) {
+        this.stripes = new StampedLock[stripes];
+        for (int i = 0; i < stripes; i++)
+            this.stripes[i] = new StampedLock();
+        acquired = new AtomicLongArray(stripes);
+        contended = new AtomicLongArray(stripes);
+        waitNanos = new AtomicLongArray(stripes);
+        optimistic = new AtomicLongArray(stripes);
+        failed = new AtomicLongArray(stripes);
+    }
+
+    /**
+     * shared lock, for reading the mailbox
+     *
+     * @return the stamp to pass to unlock
+     */
+    long readLock(String username) {
+        int stripe = stripeOf(username);
+        long stamp = stripes[stripe].tryReadLock();
+        if (stamp == 0) {
+            long start = System.nanoTime();
+            stamp = stripes[stripe].readLock();
+            contended(stripe, start);
+        }
+        acquired.incrementAndGet(stripe);
+        return stamp;
+    }
+
+    /**
+     * exclusive lock, for changing the mailbox
+     *
+     * @return the stamp to pass to unlock
+     */
+    long writeLock(String username) {
+        int stripe = stripeOf(username);
+        long stamp = stripes[stripe].tryWriteLock();
+        if (stamp == 0) {
+            long start = System.nanoTime();
+            stamp = stripes[stripe].writeLock();
+            contended(stripe, start);
+        }
+        acquired.incrementAndGet(stripe);
+        return stamp;
+    }
+
+    void unlock(String username, long stamp) {
+        stripes[stripeOf(username)].unlock(stamp);
+    }
+
+    /**
+     * starts a read without locking, what is read can be used only if validate returns true afterwards
+     *
+     * @return the stamp to pass to validate, 0 if the mailbox is being changed right now
+     */
+    long tryOptimisticRead(String username) {
+        int stripe = stripeOf(username);
+        optimistic.incrementAndGet(stripe);
+        long stamp = stripes[stripe].tryOptimisticRead();
+        if (stamp == 0)
+            failed.incrementAndGet(stripe);
+        return stamp;
+    }
+
+    /**
+     * @return true if nobody locked the mailbox for writing since the stamp was taken
+     */
+    boolean validate(String username, long stamp) {
+        int stripe = stripeOf(username);
+        if (stamp != 0 && stripes[stripe].validate(stamp))
+            return true;
+        if (stamp != 0)
+            failed.incrementAndGet(stripe);
+        return false;
+    }
+
+    String stats() {
+        long totalAcquired = 0, totalContended = 0, totalWait = 0, totalOptimistic = 0, totalFailed = 0;
+        ArrayList<Integer> busiest = new ArrayList<>();
+        for (int i = 0; i < stripes.length; i++) {
+            totalAcquired += acquired.get(i);
+            totalContended += contended.get(i);
+            totalWait += waitNanos.get(i);
+            totalOptimistic += optimistic.get(i);
+            totalFailed += failed.get(i);
+            if (contended.get(i) > 0)
+                busiest.add(i);
+        }
+        busiest.sort((a, b) -> Long.compare(contended.get(b), contended.get(a)));
+        StringBuilder stats = new StringBuilder("locks: " + stripes.length + " stripes, " + totalAcquired + " acquired, "
+                + totalContended + " contended, wait avg " + totalWait / Math.max(totalContended, 1) / 1000 + " us, optimistic reads "
+                + totalOptimistic + " (" + totalFailed + " failed)");
+        for (int stripe : busiest.subList(0, Math.min(BUSIEST, busiest.size()))) {
+            stats.append(", stripe ").append(stripe).append(" contended ").append(contended.get(stripe)).append("/")
+                    .append(acquired.get(stripe)).append(" wait ").append(waitNanos.get(stripe) / 1000).append(" us");
+        }
+        return stats.toString();
+    }
+
+    private void contended(int stripe, long start) {
+        contended.incrementAndGet(stripe);
+        waitNanos.addAndGet(stripe, System.nanoTime() - start);
+    }
+
+    private int stripeOf(String username) {
+        int hash = username.hashCode();
+        return (hash ^ (hash >>> 16)) & (stripes.length - 1);
+    }
+}
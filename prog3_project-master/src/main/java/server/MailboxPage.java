@@ -0,0 +1,44 @@
+package server;
+
+import shared.Email;
+
+import java.util.List;
+
+/**
+ * a page of a mailbox, the answer of MailboxStore.page: the first sync of a client reads the mailbox a page at a time,
+ * the newest mails first. A continuation is "token.seq": the token of the mailbox index and the sequence number of the
+ * last mail of the previous page, the next page starts from the mail before it
+ */
+class MailboxPage {
+    final List<Email> mails; //newest first, null if they were not read
+    final List<Long> ids; //their IDs, in the same order
+    final String next; //continuation of the next page, null if this is the last one
+    final String cursor; //for the updates after the sync, only in the first page (see MailboxChanges)
+
+    MailboxPage(List<Email> mails, List<Long> ids, String next, String cursor) {
+        this.mails = mails;
+        this.ids = ids;
+        this.next = next;
+        this.cursor = cursor;
+    }
+
+    static String continuation(long token, long seq) {
+        return Long.toHexString(token) + "." + seq;
+    }
+
+    /**
+     * @return token and sequence number, null if the continuation is empty or malformed
+     */
+    static long[] parse(String continuation) {
+        if (continuation == null)
+            return null;
+        String[] parts = continuation.split("\\.");
+        if (parts.length != 2)
+            return null;
+        try {
+            return new long[]{Long.parseUnsignedLong(parts[0], 16), Long.parseLong(parts[1])};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
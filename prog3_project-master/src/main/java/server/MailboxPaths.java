@@ -0,0 +1,148 @@
+package server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * where the files of a mailbox are saved. The hash of the username chooses one of the data roots and two levels of
+ * directories inside it (root/3f/a2/username.csv), so no directory gets too many files and the mailboxes are spread
+ * over all the volumes configured in dataRoots.
+ * Adding or removing a root changes the root of most mailboxes: before a mailbox is opened its files are moved from
+ * wherever they were, the old flat directory or another root, and the write-ahead log follows the first root.
+ * Only the configured roots are searched: before removing a root, copy its directories into one that stays
+ */
+class MailboxPaths {
+    //every file a mailbox can have, moved together when an old mailbox is moved in its directory
+    private static final String[] EXTENSIONS = {".csv", ".csz", ".idx", ".del", ".fts", ".ftl", ".ref"};
+
+    private final Path[] roots;
+    private final Path legacy; //where the mailboxes were saved before, all in the same directory
+    private final Set<Path> created = ConcurrentHashMap.newKeySet();
+    private final Set<String> moved = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param roots  data roots, dataRoots in the configuration file
+     * @param legacy directory of the mailboxes saved before the data roots existed, usersDir in the configuration file
+     */
+    MailboxPaths(List<String> roots, String legacy) {
+        this.roots = roots.stream().map(Paths::get).toArray(Path[]::new);
+        this.legacy = Paths.get(legacy);
+    }
+
+    /**
+     * @param username  owner of the mailbox
+     * @param extension type of the file
+     * @return the path of the file, its directory is created the first time
+     */
+    Path resolve(String username, String extension) {
+        Path directory = directory(roots[rootOf(username)], username);
+        if (!created.contains(directory)) {
+            try {
+                Files.createDirectories(directory);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            created.add(directory);
+        }
+        return directory.resolve(username + extension);
+    }
+
+    /**
+     * @return the number of the data root of the mailbox
+     */
+    int rootOf(String username) {
+        return (int) ((hash(username) >>> 16) % roots.length);
+    }
+
+    int roots() {
+        return roots.length;
+    }
+
+    /**
+     * @return the directory of the WriteAheadLog, in the first data root. If the first root changed, the log is moved
+     * there from the root that has it: it must be replayed before any mailbox is opened
+     */
+    Path wal() throws IOException {
+        Path wal = roots[0].resolve("wal");
+        if (Files.exists(wal))
+            return wal;
+        for (Path root : roots) {
+            Path old = root.resolve("wal");
+            if (Files.isDirectory(old)) {
+                try {
+                    Files.move(old, wal, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    throw new IOException("the write-ahead log in " + old + " cannot be moved to the first data root " + wal
+                            + ", move it before starting the server: " + e.getMessage());
+                }
+                break;
+            }
+        }
+        return wal;
+    }
+
+    /**
+     * moves the files of a mailbox to its directory from the old flat directory or from another data root, done once
+     * before opening it. Each file is copied with a temporary name next to the destination and then renamed, so a crash
+     * never leaves half a file: if both copies exist the moved one is complete and the old one is deleted
+     */
+    void relocate(String username) throws IOException {
+        if (moved.contains(username))
+            return;
+        for (String extension : EXTENSIONS) {
+            Path destination = resolve(username, extension);
+            for (Path old : previous(username, extension)) {
+                if (!Files.exists(old) || old.equals(destination))
+                    continue;
+                if (!Files.exists(destination)) {
+                    Path tmp = destination.resolveSibling(destination.getFileName() + ".tmp");
+                    Files.copy(old, tmp, StandardCopyOption.REPLACE_EXISTING);
+                    try (FileChannel copy = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                        copy.force(true); //the old file is deleted next, the copy has to be on disk
+                    }
+                    Files.move(tmp, destination, StandardCopyOption.ATOMIC_MOVE);
+                }
+                Files.delete(old);
+            }
+        }
+        moved.add(username);
+    }
+
+    /**
+     * @return where a file of the mailbox can be if it was saved with other data roots: the old flat directory and the
+     * same directories in every root, the hash of the username chooses them whatever the roots are
+     */
+    private List<Path> previous(String username, String extension) {
+        List<Path> paths = new ArrayList<>();
+        paths.add(legacy.resolve(username + extension));
+        for (Path root : roots)
+            paths.add(directory(root, username).resolve(username + extension));
+        return paths;
+    }
+
+    private static Path directory(Path root, String username) {
+        long hash = hash(username);
+        return root.resolve(String.format("%02x", (hash >>> 8) & 0xff)).resolve(String.format("%02x", hash & 0xff));
+    }
+
+    /**
+     * CRC32 of the username, unlike String.hashCode its bits are well spread also for similar names
+     */
+    private static long hash(String username) {
+        CRC32 crc = new CRC32();
+        crc.update(username.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+}
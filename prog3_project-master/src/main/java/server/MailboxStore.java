@@ -0,0 +1,92 @@
+package server;
+
+import shared.Email;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * storage engine of the users mailboxes, Model talks only with this interface so the way mails are saved on disk
+ * can change without touching the protocol. Every implementation has to be thread safe, many Connection use it at once
+ */
+public interface MailboxStore {
+
+    /**
+     * creates the mailbox of the user, if it doesn't exist yet
+     * @param username owner of the mailbox
+     */
+    void create(String username) throws IOException;
+
+    /**
+     * saves a mail at the end of the mailbox of every receiver, returns when all of them are saved
+     * @param usernames receivers of the mail
+     * @param mail      mail to save, with the same ID for every receiver
+     */
+    void append(Collection<String> usernames, Email mail) throws IOException;
+
+    /**
+     * saves more mails together, as append would do for each of them, returns when all of them are saved
+     * @param usernames receivers of each mail
+     * @param mails     mails to save, in the same order of usernames
+     */
+    void appendAll(List<Collection<String>> usernames, List<Email> mails) throws IOException;
+
+    /**
+     * @param username  owner of the mailbox
+     * @param unixTime  UnixTimestamp (in seconds) of the last update of the client
+     * @return every mail with a date greater or equal to unixTime, in the order they arrived
+     */
+    List<Email> readSince(String username, long unixTime) throws IOException;
+
+    /**
+     * @param username owner of the mailbox
+     * @param cursor   cursor returned by the last call, empty for the whole mailbox
+     * @param read     false to get only the IDs of the mails added, for a caller that already has the mails
+     * @return the mails added and the ones deleted after the cursor, with the cursor to use next time
+     */
+    MailboxChanges changesSince(String username, String cursor, boolean read) throws IOException;
+
+    /**
+     * @param username     owner of the mailbox
+     * @param continuation returned with the previous page, empty for the first one
+     * @param size         mails in the page at most
+     * @param read         false to get only the IDs of the mails, as for changesSince
+     * @return the mails before the continuation, the newest first, with the continuation of the next page and, in the
+     * first page, the cursor for the updates after it
+     */
+    MailboxPage page(String username, String continuation, int size, boolean read) throws IOException;
+
+    /**
+     * @param username owner of the mailbox
+     * @param IDs      IDs of the mails to read, the ones not in the mailbox are ignored
+     * @return the whole mails, in the order they arrived
+     */
+    List<Email> fetch(String username, Collection<Long> IDs) throws IOException;
+
+    /**
+     * full text search over subject, body and sender of the mails of the user
+     * @param username owner of the mailbox
+     * @param query    words to search, a mail matches if it contains all of them
+     * @return the IDs of the matching mails, the most recent first
+     */
+    List<Long> search(String username, String query) throws IOException;
+
+    /**
+     * removes some mails from the user mailbox
+     * @param username owner of the mailbox
+     * @param IDs      IDs of the mails to remove
+     * @return how many mails were actually removed
+     */
+    int delete(String username, Collection<Long> IDs) throws IOException;
+
+    /**
+     * @return a short report about the store (sizes, counters), printed periodically in the server logs
+     */
+    String stats();
+
+    /**
+     * releases every resource held by the store, called when the server is closed
+     */
+    void close();
+}
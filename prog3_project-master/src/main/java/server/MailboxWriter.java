@@ -0,0 +1,151 @@
+package server;
+
+import shared.Email;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * single thread that writes the new mails in the segments. The mails are already saved in the WriteAheadLog, so the
+ * connections don't wait for the writer: it takes everything queued meanwhile and writes together the mails directed to
+ * the same mailbox, opening it once per batch. The segments are synced by the checkpoints of the log.
+ * A mailbox that can't be written fails only its own futures, the writer goes on with the others; when the writer
+ * stops the mails still queued fail too, so no connection waits for a write that never happens
+ */
+class MailboxWriter implements Runnable {
+    private static final int MAX_BATCH = 1024;
+    private static final Pending STOP = new Pending(null, null, null, 0);
+
+    private final SegmentMailboxStore store;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong batches = new AtomicLong(), appends = new AtomicLong(), maxBatch = new AtomicLong();
+    private final AtomicLong flushNanos = new AtomicLong(), maxFlushNanos = new AtomicLong();
+    private volatile boolean stopped = false;
+
+    /**
+     * @param store store owning the segments
+     */
+    MailboxWriter(SegmentMailboxStore store) {
+        this.store = store;
+    }
+
+    /**
+     * queues a mail, the returned future completes when the mail is written in the segment
+     *
+     * @param username   owner of the mailbox
+     * @param mail       the mail, indexed for the searches after it's written
+     * @param record     the mail as a CSV line, or its reference
+     * @param references receivers of a mail saved in the content segment, 0 for the other segments
+     */
+    CompletableFuture<Void> submit(String username, Email mail, byte[] record, int references) {
+        Pending pending = new Pending(username, mail, record, references);
+        queue.add(pending);
+        if (stopped)
+            failQueued(); //queued after the writer emptied the queue for the last time
+        return pending.done;
+    }
+
+    void stop() {
+        queue.add(STOP);
+    }
+
+    @Override
+    public void run() {
+        ArrayList<Pending> batch = new ArrayList<>();
+        try {
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.drainTo(batch, MAX_BATCH - 1);
+                boolean stop = batch.remove(STOP);
+                if (!batch.isEmpty())
+                    flush(batch);
+                batch.clear();
+                if (stop)
+                    return;
+            }
+        } finally {
+            stopped = true;
+            IOException stoppedException = new IOException("the mailbox writer stopped");
+            for (Pending pending : batch)
+                pending.done.completeExceptionally(stoppedException);
+            failQueued();
+        }
+    }
+
+    /**
+     * fails the mails that the writer, stopped, will never take
+     */
+    private void failQueued() {
+        ArrayList<Pending> left = new ArrayList<>();
+        queue.drainTo(left);
+        IOException stoppedException = new IOException("the mailbox writer stopped");
+        for (Pending pending : left)
+            if (pending != STOP)
+                pending.done.completeExceptionally(stoppedException);
+    }
+
+    /**
+     * writes a batch grouping the mails by mailbox, then completes the futures of the connections waiting
+     */
+    private void flush(List<Pending> batch) {
+        long start = System.nanoTime();
+        LinkedHashMap<String, List<Pending>> mailboxes = new LinkedHashMap<>();
+        mailboxes.put(ContentStore.CONTENT, new ArrayList<>()); //first, the references written in the same batch point to it
+        for (Pending pending : batch)
+            mailboxes.computeIfAbsent(pending.username, user -> new ArrayList<>()).add(pending);
+        for (Map.Entry<String, List<Pending>> mailbox : mailboxes.entrySet()) {
+            if (mailbox.getValue().isEmpty())
+                continue;
+            try {
+                store.write(mailbox.getKey(), mailbox.getValue());
+                for (Pending pending : mailbox.getValue())
+                    pending.done.complete(null);
+            } catch (IOException | RuntimeException e) {
+                //a mailbox that can't be written, for example its directory can't be created, doesn't stop the others
+                for (Pending pending : mailbox.getValue())
+                    pending.done.completeExceptionally(e);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        batches.incrementAndGet();
+        appends.addAndGet(batch.size());
+        maxBatch.accumulateAndGet(batch.size(), Math::max);
+        flushNanos.addAndGet(elapsed);
+        maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+    }
+
+    String stats() {
+        long count = Math.max(batches.get(), 1);
+        return "writer: " + batches.get() + " batches, " + appends.get() + " mails, batch size avg "
+                + appends.get() / count + " max " + maxBatch.get() + ", flush avg " + flushNanos.get() / count / 1000 + " us max "
+                + maxFlushNanos.get() / 1000 + " us";
+    }
+
+    /**
+     * a mail waiting to be written
+     */
+    static class Pending {
+        final String username;
+        final Email mail;
+        final byte[] record;
+        final int references;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(String username, Email mail, byte[] record, int references) {
+            this.username = username;
+            this.mail = mail;
+            this.record = record;
+            this.references = references;
+        }
+    }
+}
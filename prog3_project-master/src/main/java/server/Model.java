@@ -1,61 +1,128 @@
 package server;
 
 import com.opencsv.CSVReader;
-import com.opencsv.CSVWriter;
 import com.opencsv.exceptions.CsvException;
 import javafx.beans.property.SimpleStringProperty;
 import shared.Email;
+import shared.FrameCompression;
+import shared.FrameStream;
 import shared.Message;
+import shared.WireCodec;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.zip.Deflater;
 
 import static java.lang.System.exit;
 
 public class Model implements Runnable {
-    private static final AtomicInteger mailId = new AtomicInteger();
     private final SimpleStringProperty logs;
-    private ServerSocket server = null;
+    private int port = 8080; //where the clients connect, the client app connects to 8080
+    private ServerSocket server = null; //the blocking engine, a thread per connection
+    private SelectorEngine selectorEngine = null; //the nio engine, used instead if chosen in the configuration
     private HashMap<String, String> users = null;
     private String logfilePath = null;
     private final DateTimeFormatter dtf = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss");
-    private final ExecutorService exec;
-    private final String configPath = "data/configuration.csv";
+    private final ExecutorService exec; //one thread for every session, reading its requests
+    private final ReentrantLock logLock = new ReentrantLock(); //not synchronized, a virtual thread writing the logs would pin its carrier
+    private WorkQueue workers = null; //executes the requests of all the sessions, refuses them when its queue is full
+    private final EnumSet<WireCodec> codecs = EnumSet.allOf(WireCodec.class); //accepted from the clients
+    private final String configPath;
+    private MailboxStore mailboxes = null;
+    private IdAllocator mailIds = null;
+    private Subscriptions subscriptions = null; //sessions waiting for the new mails of their user
+    private SessionTokens tokens = null; //the sessions authenticated, their requests are executed with the token
+    private int pageSize = 500; //mails in a page of the first sync of a client
+    private int compressAbove = 1024; //bytes of a message from which it's compressed, if the client can, 0 never compresses
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private long retryAfter = 500; //milliseconds a client refused because the server is busy should wait
+    private int readTimeout = 300000; //milliseconds without requests after which a session is closed, 0 never
+    private long writeTimeout = 30000; //milliseconds a response can take to be written before the client is dropped, 0 never
+    private int maxConnections = 10000; //sessions open at the same time, the others are answered busy; 0 no limit
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet(); //open sessions of the blocking engine
+    private final AtomicLong refused = new AtomicLong(), timedOut = new AtomicLong(), droppedPushes = new AtomicLong();
+    static final int MAX_QUEUED_PUSHES = 64; //pushes waiting to be written to a session, of both engines
+    private final ScheduledExecutorService statsReporter;
 
     public SimpleStringProperty logsProperty() {
         return logs;
     }
 
+    /**
+     * @return the port the server listens on, from the configuration
+     */
+    int port() {
+        return port;
+    }
+
     // server initialization
     public Model() {
+        this("data/configuration.csv");
+    }
+
+    /**
+     * @param configPath the configuration to start with, its paths are relative to the working directory
+     */
+    Model(String configPath) {
+        this.configPath = configPath;
         this.logs = new SimpleStringProperty();
-        exec = Executors.newFixedThreadPool(5);
-        try {
-            server = new ServerSocket(8080);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
         //set configuration variables
+        String usersDir = null;
+        List<String> dataRoots = new ArrayList<>();
+        long mailLastId = 0;
+        long idBlockSize = 10000;
+        double compactionThreshold = 0.3;
+        long cacheSize = 64L * 1024 * 1024;
+        long mmapThreshold = 16L * 1024 * 1024;
+        WriteAheadLog.Durability durability = WriteAheadLog.Durability.PERIODIC;
+        long syncInterval = 1000;
+        long walFileSize = 64L * 1024 * 1024;
+        int compressedBlockSize = 0;
+        int statsInterval = 60;
+        int workerThreads = 8;
+        String engine = "blocking";
+        int eventLoops = 2;
+        boolean virtualThreads = false;
+        long maxPushSize = 64 * 1024;
+        int queueSize = 1000;
+        WorkQueue.Overload overload = WorkQueue.Overload.REJECT;
+        long sessionTimeout = 30 * 60 * 1000;
         try{
             CSVReader reader = new CSVReader(new FileReader(configPath));
             List<String[]> configurations = reader.readAll();
             reader.close();
             for (String[] line: configurations) {
                 switch (line[0]) {
+                    case "port":
+                        port = Integer.parseInt(line[1]);
+                        break;
                     case "users":
                         users = loadUsers(line[1]);
                         break;
@@ -63,12 +130,95 @@ public class Model implements Runnable {
                         logfilePath = line[1];
                         break;
                     case "mailLastId":
-                        mailId.set(Integer.parseInt(line[1]));
+                        mailLastId = Long.parseLong(line[1]);
+                        break;
+                    case "idBlockSize":
+                        idBlockSize = Long.parseLong(line[1]);
+                        break;
+                    case "usersDir":
+                        usersDir = line[1];
+                        break;
+                    case "dataRoots": //one or more directories, the mailboxes are spread over them
+                        dataRoots.addAll(Arrays.asList(line).subList(1, line.length));
+                        break;
+                    case "compactionThreshold":
+                        compactionThreshold = Double.parseDouble(line[1]);
+                        break;
+                    case "mmapThreshold":
+                        mmapThreshold = Long.parseLong(line[1]);
+                        break;
+                    case "durability":
+                        durability = WriteAheadLog.Durability.valueOf(line[1].toUpperCase());
+                        break;
+                    case "syncInterval":
+                        syncInterval = Long.parseLong(line[1]);
+                        break;
+                    case "walFileSize":
+                        walFileSize = Long.parseLong(line[1]);
+                        break;
+                    case "compressedBlockSize":
+                        compressedBlockSize = Integer.parseInt(line[1]);
+                        break;
+                    case "cacheSize":
+                        cacheSize = Long.parseLong(line[1]);
+                        break;
+                    case "statsInterval":
+                        statsInterval = Integer.parseInt(line[1]);
+                        break;
+                    case "workerThreads":
+                        workerThreads = Integer.parseInt(line[1]);
+                        break;
+                    case "engine": //blocking (a thread per connection) or nio (a few selector threads)
+                        engine = line[1].toLowerCase();
+                        break;
+                    case "eventLoops":
+                        eventLoops = Integer.parseInt(line[1]);
+                        break;
+                    case "connectionThreads": //platform or virtual, the thread of each session of the blocking engine
+                        virtualThreads = line[1].equalsIgnoreCase("virtual");
+                        break;
+                    case "maxPushSize": //characters of a mail above which the subscribed sessions only get a hint
+                        maxPushSize = Long.parseLong(line[1]);
+                        break;
+                    case "compressAbove":
+                        compressAbove = Integer.parseInt(line[1]);
+                        break;
+                    case "compressionLevel": //1 is the fastest, 9 the smallest
+                        compressionLevel = Integer.parseInt(line[1]);
+                        break;
+                    case "queueSize": //requests waiting for a worker, the others are refused
+                        queueSize = Integer.parseInt(line[1]);
+                        break;
+                    case "overload": //reject the new requests or shed_oldest, drop the ones waiting for the longest time
+                        overload = WorkQueue.Overload.valueOf(line[1].toUpperCase());
+                        break;
+                    case "retryAfter":
+                        retryAfter = Long.parseLong(line[1]);
+                        break;
+                    case "readTimeout":
+                        readTimeout = Integer.parseInt(line[1]);
+                        break;
+                    case "writeTimeout":
+                        writeTimeout = Long.parseLong(line[1]);
+                        break;
+                    case "maxConnections":
+                        maxConnections = Integer.parseInt(line[1]);
+                        break;
+                    case "sessionTimeout": //milliseconds after which an unused session token expires
+                        sessionTimeout = Long.parseLong(line[1]);
+                        break;
+                    case "pageSize":
+                        pageSize = Integer.parseInt(line[1]);
+                        break;
+                    case "wireCodecs": //serial to accept the Java serialization, binary for the binary codec
+                        codecs.clear();
+                        for (String codec : Arrays.asList(line).subList(1, line.length))
+                            codecs.add(WireCodec.valueOf(codec.toUpperCase()));
                         break;
                 }
             }
 
-            if (users == null || logfilePath==null )
+            if (users == null || logfilePath==null || usersDir == null)
                 throw new CsvException("missing a configuration parameter");
         }catch (IOException | CsvException e){
             //if the config file is not correctly formatted use the default values
@@ -76,18 +226,76 @@ public class Model implements Runnable {
             addLogMessage(e.getMessage() + " using the default values");
             users = loadUsers("data/login.csv");
             logfilePath="data/logs.txt";
-            mailId.set(0);
+            usersDir = "data";
+            mailLastId = 0;
         }
+        if (dataRoots.isEmpty())
+            dataRoots.add(usersDir);
+        exec = sessionExecutor(virtualThreads);
+        subscriptions = new Subscriptions(maxPushSize);
+        tokens = new SessionTokens(sessionTimeout);
+        mailIds = new IdAllocator(Paths.get(configPath), mailLastId, idBlockSize);
+        workers = new WorkQueue(workerThreads, queueSize, overload);
+        //the cache sits in front of the mailboxes on disk, every write goes through it.
+        //The store replays its write-ahead log here, so the mailboxes are consistent before the first connection
+        mailboxes = new CachedMailboxStore(new SegmentMailboxStore(new MailboxPaths(dataRoots, usersDir), compactionThreshold, mmapThreshold, durability,
+                syncInterval, compressedBlockSize, walFileSize), cacheSize);
+        try {
+            if (engine.equals("nio"))
+                selectorEngine = new SelectorEngine(this, port, eventLoops, workers, codecs, readTimeout, writeTimeout);
+            else
+                server = new ServerSocket(port);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        //periodically prints in the logs the counters of the store, useful to size the cache and the queue of the workers.
+        //The same thread drops the clients that stopped reading their responses
+        statsReporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (statsInterval > 0) //0 disables the report
+            statsReporter.scheduleAtFixedRate(() -> addLogMessage(stats()), statsInterval, statsInterval, TimeUnit.SECONDS);
+        if (writeTimeout > 0 && selectorEngine == null) //the nio engine checks its own connections
+            statsReporter.scheduleWithFixedDelay(this::dropStalled, 1, 1, TimeUnit.SECONDS);
+        statsReporter.scheduleWithFixedDelay(tokens::expire, 60, 60, TimeUnit.SECONDS);
+
+    }
 
+    /**
+     * the sessions stay open, a fixed pool would refuse the clients after the first ones.
+     * A session spends its life blocked reading the socket, with virtual threads it costs a few KB instead of a
+     * platform thread. They exist from Java 21, they are looked up by reflection so the project still builds for Java 11
+     *
+     * @param virtual a virtual thread for every session, if the JVM has them
+     */
+    private ExecutorService sessionExecutor(boolean virtual) {
+        if (virtual) {
+            try {
+                ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                addLogMessage("sessions run on virtual threads");
+                return executor;
+            } catch (ReflectiveOperationException e) {
+                addLogMessage("virtual threads need Java 21, the sessions run on platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
     }
 
     /**
      * after everything is set up this method can be used to start the server that will then listen for incoming connection
      */
     public void run() {
+        if (selectorEngine != null) {
+            selectorEngine.run();
+            return;
+        }
         while (true) {
             try {
-                exec.execute(new Connection(server.accept()));
+                Socket socket = server.accept();
+                exec.execute(new Connection(socket, tooManyConnections(connections.size())));
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -95,44 +303,134 @@ public class Model implements Runnable {
     }
 
     public void close(){
-        List<String[]> configurations;
         try  {
-            //writes the last ID back into configuration file
-            CSVReader reader = new CSVReader(new FileReader(configPath));
-            configurations = reader.readAll();
-            for (String[] config: configurations) {
-                if (config[0].equals("mailLastId"))
-                    config[1]= String.valueOf(mailId.getAcquire());
+            //close all child thread, the sessions are blocked reading so they are interrupted closing their sockets
+            exec.shutdownNow();
+            if (selectorEngine != null)
+                selectorEngine.close();
+            workers.shutdown();
+            if (!workers.awaitTermination(800, TimeUnit.MILLISECONDS)) {
+                workers.shutdownNow();
             }
-            reader.close();
-            CSVWriter writer = new CSVWriter(new FileWriter(configPath),CSVWriter.DEFAULT_SEPARATOR, CSVWriter.NO_QUOTE_CHARACTER,CSVWriter.DEFAULT_ESCAPE_CHARACTER,CSVWriter.DEFAULT_LINE_END);
-            writer.writeAll(configurations);
-            writer.close();
-            //close all child thread
-            exec.shutdown();
-            if (!exec.awaitTermination(800, TimeUnit.MILLISECONDS)) {
-                exec.shutdownNow();
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+        }
+        try {
+            //the reserved IDs are already saved, this only avoids wasting the rest of the block
+            mailIds.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+        statsReporter.shutdownNow();
+        addLogMessage(stats());
+        mailboxes.close();
+
+    }
+
+    /**
+     * @return the counters of the store, of the workers, and of the engine if it's the nio one
+     */
+    private String stats() {
+        String stats = mailboxes.stats() + "\n" + subscriptions.stats() + "\n" + tokens.stats() + "\n" + workers.stats() + "\nconnections: "
+                + (selectorEngine == null ? connections.size() + " open, " : "") + refused.get() + " refused, " + timedOut.get() + " timed out"
+                + (selectorEngine == null ? ", " + droppedPushes.get() + " push queues overflowed" : "");
+        return selectorEngine == null ? stats : stats + "\n" + selectorEngine.stats();
+    }
+
+    /**
+     * @param open sessions already open
+     * @return true if a new session has to be refused, it's answered busy when it authenticates
+     */
+    boolean tooManyConnections(long open) {
+        return maxConnections > 0 && open >= maxConnections;
+    }
+
+    /**
+     * @return the answer to a request not executed because the server is overloaded, the argument has the milliseconds
+     * the client should wait before trying again
+     */
+    Message busy() {
+        Message busy = new Message("server busy, retry after " + retryAfter + " ms");
+        busy.setError(true);
+        busy.setArgument(String.valueOf(retryAfter));
+        return busy;
+    }
+
+    /**
+     * called by the engines when a session is refused because too many are open
+     */
+    void refused(String address) {
+        refused.incrementAndGet();
+        addLogMessage("too many connections, refused " + address);
+    }
+
+    /**
+     * called by the engines when a client is dropped because it stopped sending or reading
+     *
+     * @param reason what the client didn't do in time
+     */
+    void timedOut(String username, String address, String reason) {
+        timedOut.incrementAndGet();
+        addLogMessage((username == null ? "connection" : username) + " from " + address + " dropped, " + reason);
+    }
+
+    /**
+     * closes the sockets of the blocking engine with a response being written for more than writeTimeout: the client
+     * doesn't read, the worker writing it is freed by the exception of the write
+     */
+    private void dropStalled() {
+        long now = System.currentTimeMillis();
+        for (Connection connection : connections) {
+            long since = connection.writingSince;
+            if (since != 0 && now - since > writeTimeout) {
+                timedOut(connection.username, connection.socket.getInetAddress().toString(), "a response wasn't read in " + writeTimeout + " ms");
+                try {
+                    connection.socket.close();
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                }
             }
-        } catch (InterruptedException | IOException | CsvException e) {
-            exec.shutdownNow();
         }
+    }
 
+    /**
+     * @return the compression of a new connection, used if the client offers it; null if the server doesn't compress
+     */
+    FrameCompression newCompression() {
+        return compressAbove > 0 ? new FrameCompression(compressAbove, compressionLevel) : null;
+    }
+
+    /**
+     * called by the engines when a connection is closed, logs how much its frames were compressed and what it cost
+     *
+     * @param compression null if the connection didn't compress
+     */
+    void connectionClosed(String username, String address, FrameCompression compression) {
+        if (compression == null)
+            return;
+        addLogMessage((username == null ? "connection" : username) + " from " + address + " closed, " + compression.stats());
+        compression.close();
     }
 
     /** print a new log, on the GUI and in the text file.
      * @param message log message that needs to be shown
      */
-    private synchronized void addLogMessage(String message){
+    private void addLogMessage(String message){
         StringBuilder log = new StringBuilder();
         log.append(dtf.format(LocalDateTime.now())).append(":").append(message).append("\n");
-        if (logs.getValue() != null)
-            logs.setValue(logs.getValue() + log.toString());
-        else
-            logs.setValue(log.toString());
-        try (PrintWriter printLogs = new PrintWriter(new FileOutputStream(logfilePath, true))) {
-            printLogs.append(log.toString());
-        } catch (IOException e) {
-            e.printStackTrace(); //if the logs cannot be written the program has to be stopped
+        logLock.lock();
+        try {
+            if (logs.getValue() != null)
+                logs.setValue(logs.getValue() + log.toString());
+            else
+                logs.setValue(log.toString());
+            try (PrintWriter printLogs = new PrintWriter(new FileOutputStream(logfilePath, true))) {
+                printLogs.append(log.toString());
+            } catch (IOException e) {
+                e.printStackTrace(); //if the logs cannot be written the program has to be stopped
+            }
+        } finally {
+            logLock.unlock();
         }
     }
 
@@ -170,32 +468,454 @@ public class Model implements Runnable {
     }
 
     /**
-     * For each new client a Connection is created, the scope of this class is to handle client requests.
-     * Can be used in a thread or in a threadPool, no need to return results so it doesn't implement Callable
+     * checks the credentials sent with the first request of a session, if the user doesn't have an inbox on server it's created.
+     * The session gets a token, a client connecting again can send it with the action resume instead of the credentials.
+     * Used by both engines, the caller writes the response
+     *
+     * @param address address of the client, for the logs
+     * @return the response to the request, with the token and how long it lasts unused in the argument (see
+     * SessionTokens.authenticated); an error if the credentials are wrong and the session has to be closed
+     */
+    Message authenticate(Message request, String address) {
+        if ("resume".equals(request.getText())) {
+            if (tokens.resume(request.getUser(), request.getArgument()) == null) {
+                Message error = new Message("session expired");
+                error.setError(true);
+                return error;
+            }
+            addLogMessage(request.getUser() + " resumed its session from: " + address);
+            return tokens.authenticated(request.getArgument());
+        }
+        if (!"auth".equals(request.getText()) || !checkCredentials(request.getUser(), request.getHash())) {
+            Message error = new Message("wrong credentials");
+            error.setError(true);
+            addLogMessage(request.getUser() + " tried access with wrong credential from: " + address);
+            return error;
+        }
+        try {
+            mailboxes.create(request.getUser());
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            exit(1); //surely a permission problem
+        }
+        System.out.println(dtf.format(LocalDateTime.now()) + ": " + request.getUser() + " Authenticated");
+        addLogMessage(request.getUser() + " Authenticated from: " + address);
+        //argument headers: the client lists the mails without their body and fetches it when a mail is opened
+        return tokens.authenticated(tokens.issue(request.getUser(), "headers".equals(request.getArgument())));
+    }
+
+    /**
+     * executes a request of an authenticated session, used by both engines
+     *
+     * @param token the token of the session, checked first: an error if it expired
+     */
+    Message execute(String token, Message request, Consumer<Message> session) {
+        SessionTokens.Session authenticated = tokens.session(token);
+        if (authenticated == null) {
+            Message error = new Message("session expired");
+            error.setError(true);
+            return error;
+        }
+        return selectAction(authenticated.username, request, session, authenticated.headers);
+    }
+
+    /**
+     * @param headers true if the session lists the mails without their body
+     * @return the mails to send in a listing
+     */
+    private static Email[] listing(List<Email> mails, boolean headers) {
+        return headers ? mails.stream().map(Email::header).toArray(Email[]::new) : mails.toArray(Email[]::new);
+    }
+
+    /**
+     * the changes of the mailbox after the cursor of the client: the new mails, the IDs deleted in the text
+     * ("deleted:" followed by the IDs) and the cursor for the next update in the argument.
+     * If the cursor is too old for the deletes the text has the IDs of all the mails in the mailbox ("live:"), the client drops the others
+     *
+     * @param cursor  the cursor of the last update, empty or null for the whole mailbox
+     * @param headers true to send the mails without their body
+     */
+    private Message sendChanges(String username, String cursor, boolean headers) {
+        Message response;
+        try {
+            MailboxChanges changes = mailboxes.changesSince(username, cursor, true);
+            List<Long> IDs = changes.deleted != null ? changes.deleted : changes.live;
+            response = new Message((changes.deleted != null ? "deleted:" : "live:")
+                    + IDs.stream().map(String::valueOf).collect(Collectors.joining(",")), listing(changes.mails, headers));
+            response.setArgument(changes.cursor);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            addLogMessage(e.getMessage());
+            response = new Message("cannot update the mailbox");
+            response.setError(true);
+        }
+        return response;
+    }
+
+    /**
+     * a page of the mailbox, the newest mails first: the continuation of the next page is in the argument, null after
+     * the last one. The text of the first page is the cursor for the updates after the sync, empty in the others
+     *
+     * @param continuation from the previous page, empty or null for the first one
+     * @param headers      true to send the mails without their body
+     */
+    private Message sendPage(String username, String continuation, boolean headers) {
+        Message response;
+        try {
+            MailboxPage page = mailboxes.page(username, continuation, pageSize, true);
+            response = new Message(page.cursor == null ? "" : page.cursor, listing(page.mails, headers));
+            response.setArgument(page.next);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            addLogMessage(e.getMessage());
+            response = new Message("cannot read the mailbox");
+            response.setError(true);
+        }
+        return response;
+    }
+
+    /**
+     * the bodies are read only for the mails asked, at most a page of them
+     *
+     * @param IDs the IDs of the mails separated by commas
+     */
+    private Message fetch(String username, String IDs) {
+        Message response;
+        try {
+            List<Long> requested = new ArrayList<>();
+            for (String ID : IDs.split(","))
+                requested.add(Long.parseLong(ID));
+            if (requested.size() > pageSize) {
+                response = new Message("cannot fetch more than " + pageSize + " emails at once");
+                response.setError(true);
+                return response;
+            }
+            response = new Message("fetched", mailboxes.fetch(username, requested).toArray(Email[]::new));
+        } catch (NullPointerException | NumberFormatException e) {
+            response = new Message("cannot fetch requested emails, wrong IDs");
+            response.setError(true);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            addLogMessage(e.getMessage());
+            response = new Message("cannot read the mailbox");
+            response.setError(true);
+        }
+        return response;
+    }
+
+    /**
+     * given an username and the last time he updated returns all the new mail received
+     * @param username username
+     * @param unixTimeLastUpdate list time the user asked for an update, expressed in UnixTimestamp
+     * @param headers true to send the mails without their body
+     */
+    private Message sendNewMails(String username, long unixTimeLastUpdate, boolean headers){
+        Email[] mailArray = null;
+        try {
+            //the store keeps an index of the mailbox, only the mails received after unixTimeLastUpdate are read
+            mailArray = listing(mailboxes.readSince(username, unixTimeLastUpdate), headers);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            addLogMessage(e.getMessage());
+        }
+        return new Message("new mails",mailArray);
+    }
+
+    /**
+     * every request contains the action and its parameter, the user is the one authenticated with the session
+     * this function executes the requested action and returns the response
+     *
+     * @param username the user authenticated with the session
+     * @param request  the request, with the action and its parameter
+     * @param session  writes on the connection of the session the messages pushed by the server, used by subscribe
+     * @param headers  true if the session lists the mails without their body
+     */
+    private Message selectAction(String username, Message request, Consumer<Message> session, boolean headers) {
+        Message response;
+        String action = request.getText() == null ? "" : request.getText();
+        switch (action) {
+            case "update": //user requested an update, send all the mail received after a given timestamp or cursor
+                String updateTimeString = request.getArgument();
+                if (updateTimeString == null || !updateTimeString.matches("-?\\d+")) {
+                    response = sendChanges(username, updateTimeString, headers);
+                    break;
+                }
+                try {
+                    long timestampTemp = Long.parseLong(updateTimeString);
+                    response = sendNewMails(username, timestampTemp, headers);
+                } catch (NumberFormatException e) {
+                    addLogMessage("user " + username + " requested an update with wrong timestamp, timestamp: " + updateTimeString);
+                    System.err.println(e.getMessage());
+                    response = new Message("cannot update, wrong timestamp");
+                    response.setError(true);
+                }
+                break;
+            case "sync": //first sync of a client, a page of the mailbox at a time from the newest mail
+                response = sendPage(username, request.getArgument(), headers);
+                break;
+            case "fetch": //the whole mails with the given IDs, a client listing only the headers asks them when they are opened
+                response = fetch(username, request.getArgument());
+                break;
+            case "send":
+                response = send(username, Collections.singletonList(request)).get(0);
+                break;
+            case "search": {
+                try {
+                    //the words to search, the response contains the IDs of the matching mails
+                    String query = request.getArgument();
+                    List<Long> IDs = mailboxes.search(username, query);
+                    response = new Message(IDs.stream().map(String::valueOf).collect(Collectors.joining(",")));
+                    addLogMessage("user " + username + " searched \"" + query + "\", " + IDs.size() + " results");
+                } catch (IOException | NullPointerException e) {
+                    System.err.println(e.getMessage());
+                    addLogMessage(e.getMessage());
+                    response = new Message("cannot search the mailbox");
+                    response.setError(true);
+                }
+                break;
+            }
+            case "delete":
+                response = delete(username, Collections.singletonList(request)).get(0);
+                break;
+            case "batch":
+                response = batch(username, request, session, headers);
+                break;
+            case "ping": //sent by an idle client to keep its session open, see readTimeout
+                response = new Message("pong");
+                break;
+            case "subscribe": //the new mails are pushed to the session until it's closed, no need to poll
+                subscriptions.subscribe(username, session);
+                response = new Message("subscribed");
+                break;
+            default:
+                response = new Message("unknown action " + action);
+                response.setError(true);
+        }
+        return response;
+    }
+
+    /**
+     * executes the operations of a batch in their order and answers with the response of each one, in the same order.
+     * Consecutive sends are saved together, with a single write of the log, and consecutive deletes are one delete
+     * of the mailbox: a client coming back online sends everything it queued in one request
+     */
+    private Message batch(String username, Message request, Consumer<Message> session, boolean headers) {
+        Message[] operations = request.getOperations() == null ? new Message[0] : request.getOperations();
+        List<Message> responses = new ArrayList<>();
+        int next = 0;
+        while (next < operations.length) {
+            String action = operations[next].getText() == null ? "" : operations[next].getText();
+            int end = next + 1;
+            if (action.equals("send") || action.equals("delete"))
+                while (end < operations.length && action.equals(operations[end].getText()))
+                    end++;
+            List<Message> group = Arrays.asList(operations).subList(next, end);
+            if (action.equals("send")) {
+                responses.addAll(send(username, group));
+            } else if (action.equals("delete")) {
+                responses.addAll(delete(username, group));
+            } else if (action.equals("batch")) {
+                Message error = new Message("a batch cannot contain another batch");
+                error.setError(true);
+                responses.add(error);
+            } else {
+                responses.add(selectAction(username, operations[next], session, headers));
+            }
+            next = end;
+        }
+        Message response = new Message("batch of " + operations.length + " operations");
+        response.setOperations(responses.toArray(new Message[0]));
+        return response;
+    }
+
+    /**
+     * sends the mails of some requests, the ones with at least an existing receiver are saved together
+     *
+     * @return the response of each request, in the same order
+     */
+    private List<Message> send(String username, List<Message> requests) {
+        Message[] responses = new Message[requests.size()];
+        List<Integer> saved = new ArrayList<>(); //the requests whose mail is saved
+        List<Collection<String>> receiversOf = new ArrayList<>();
+        List<Email> mails = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++) {
+            try {
+                //the Email to be sent
+                Email newMail = requests.get(i).getEmail();
+                //reads the receiver and filters them, excluding the non existing ones; a receiver written twice gets the mail once
+                Set<String> wrongReceivers = new LinkedHashSet<>();
+                Set<String> receivers = new LinkedHashSet<>();
+                for (String receiver : newMail.getReceivers()) {
+                    if (receiver.equals(username)) { // the user is trying to send an email to himself
+                        wrongReceivers.add(username);
+                    }else {
+                        if (users.containsKey(receiver)) {
+                            receivers.add(receiver);
+                        } else {
+                            wrongReceivers.add(receiver);
+                        }
+                    }
+                }
+                //one ID for the mail, the store saves it once and gives every existing receiver a reference
+                newMail.setID(mailIds.next());
+                if (!receivers.isEmpty()) {
+                    saved.add(i);
+                    receiversOf.add(receivers);
+                    mails.add(newMail);
+                }
+                //returns to the client eventual wrong users
+                if (wrongReceivers.size() != 0) {
+                    responses[i] = new Message("cant find users: " + String.join(",", wrongReceivers));
+                    responses[i].setError(true);
+                } else {
+                    responses[i] = new Message("status ok");
+                }
+            } catch (IOException | NullPointerException | ArrayIndexOutOfBoundsException e) {
+                addLogMessage("user " + username + " tried to send a mail, but an error occurred");
+                System.err.println(e.getMessage());
+                responses[i] = new Message("cannot send the mail");
+                responses[i].setError(true);
+            }
+        }
+        try {
+            mailboxes.appendAll(receiversOf, mails);
+        } catch (IOException e) {
+            addLogMessage("user " + username + " tried to send " + mails.size() + " mails, but an error occurred");
+            addLogMessage(e.getMessage());
+            System.err.println(e.getMessage());
+            for (int i : saved) {
+                responses[i] = new Message("cannot send the mail");
+                responses[i].setError(true);
+            }
+            return Arrays.asList(responses);
+        }
+        for (int m = 0; m < mails.size(); m++) {
+            //the receivers online get it now, saved before so an update can't miss it
+            subscriptions.deliver(receiversOf.get(m), mails.get(m));
+            addLogMessage("user " + username + " sent " + receiversOf.get(m).size() + "/" + mails.get(m).getReceivers().size() + " email");
+        }
+        return Arrays.asList(responses);
+    }
+
+    /**
+     * deletes the mails of some requests, all together
+     *
+     * @return the response of each request, in the same order
+     */
+    private List<Message> delete(String username, List<Message> requests) {
+        Message[] responses = new Message[requests.size()];
+        List<Long> IDs = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++) {
+            try {
+                //the IDs of the mails that the client wants to delete
+                List<Long> requested = new ArrayList<>();
+                for (String ID : requests.get(i).getArgument().split(","))
+                    requested.add(Long.parseLong(ID));
+                IDs.addAll(requested);
+                responses[i] = new Message("status ok");
+            } catch (NullPointerException | NumberFormatException e) {
+                System.out.println(e.getMessage());
+                addLogMessage(e.getMessage());
+                responses[i] = new Message("cannot delete requested emails, wrong IDs");
+                responses[i].setError(true);
+            }
+        }
+        if (IDs.isEmpty())
+            return Arrays.asList(responses);
+        try {
+            mailboxes.delete(username, IDs);
+            addLogMessage("users " + username + " deleted " + IDs.size() + " emails");
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            addLogMessage(e.getMessage());
+            for (int i = 0; i < responses.length; i++) {
+                if (!responses[i].isError()) {
+                    responses[i] = new Message("cannot delete requested emails");
+                    responses[i].setError(true);
+                }
+            }
+        }
+        return Arrays.asList(responses);
+    }
+
+    /**
+     * a session was closed, it doesn't get the new mails anymore
+     */
+    void unsubscribe(String username, Consumer<Message> session) {
+        subscriptions.unsubscribe(username, session);
+    }
+
+    /**
+     * For each new client a Connection is created, it lasts for the whole session of the client.
+     * The first request must authenticate the user, then every request is executed by the workers and its response written
+     * as soon as it's ready, tagged with the ID of the request: more requests of the same client are executed together.
+     * A session that sends nothing for readTimeout is closed, the client opens it again with its next request.
+     * The mails pushed to the session wait in a bounded queue written by a thread of the session, never by the worker
+     * that saved the mail: a client that doesn't read them only loses its pushes, it's told to update instead
      */
     class Connection implements Runnable {
         Socket socket;
+        FrameStream stream;
+        volatile String username = null; //set when the user is authenticated
+        String token = null; //of the session, the requests are executed with it
+        final boolean refused; //too many sessions are open, the authentication is answered busy
+        final ReentrantLock writing = new ReentrantLock(); //the responses are written one at a time
+        volatile long writingSince = 0; //when the response being written started, 0 if none: checked by dropStalled
+        final Consumer<Message> push = this::push; //the messages pushed by the server, with no request
+        final ArrayBlockingQueue<Message> pushes = new ArrayBlockingQueue<>(MAX_QUEUED_PUSHES);
+        Future<?> pusher = null; //writes the pushes, started by the first one
+        boolean closed = false; //no more pushes are queued, guarded by pushes like pusher
 
-        public Connection(Socket socket) {
+        /**
+         * @param refused the session is closed as soon as the client authenticates, telling it to retry later
+         */
+        public Connection(Socket socket, boolean refused) {
             this.socket = socket;
+            this.refused = refused;
         }
 
         @Override
         public void run() {
             System.out.println("client connected from " + socket.getInetAddress() + ":" + socket.getPort());
-            ObjectInputStream in;
-            ObjectOutputStream out;
+            if (!refused)
+                connections.add(this);
             try {
-                out = new ObjectOutputStream(socket.getOutputStream());
-                in = new ObjectInputStream(socket.getInputStream());
-
-                Message message = (Message) in.readObject();
-
-                selectAction(message.getText(), message.getUser(), message.getHash(), in, out);
-
-            } catch (IOException | ClassNotFoundException e) {
+                socket.setSoTimeout(readTimeout);
+                //the client proposes the codecs it knows, the first one accepted by the server is used
+                stream = FrameStream.accept(socket, codecs, newCompression());
+                while (true) {
+                    //before the authentication only the credentials can arrive, a bigger frame closes the session
+                    Message request = stream.read(username == null ? FrameStream.MAX_LOGIN_FRAME : FrameStream.MAX_FRAME);
+                    if (username == null) {
+                        if (refused)
+                            refused(socket.getInetAddress().toString());
+                        Message response = refused ? busy() : authenticate(request, socket.getInetAddress().toString());
+                        respond(request, response);
+                        if (response.isError())
+                            return;
+                        username = request.getUser();
+                        token = SessionTokens.tokenOf(response);
+                        continue;
+                    }
+                    workers.execute(() -> respond(request, execute(token, request, push)), () -> respond(request, busy()));
+                }
+            } catch (SocketTimeoutException e) {
+                timedOut(username, socket.getInetAddress().toString(), "nothing received in " + readTimeout + " ms");
+            } catch (EOFException | SocketException e) {
+                //the client closed the session
+            } catch (IOException e) {
                 e.printStackTrace();
-            }finally {
+            } finally {
+                connections.remove(this);
+                if (username != null)
+                    subscriptions.unsubscribe(username, push);
+                synchronized (pushes) {
+                    closed = true;
+                    if (pusher != null)
+                        pusher.cancel(true);
+                }
+                if (stream != null)
+                    connectionClosed(username, socket.getInetAddress().toString(), stream.compression());
                 try {
                     socket.close();
                 } catch (IOException e) {
@@ -205,193 +925,59 @@ public class Model implements Runnable {
         }
 
         /**
-         * given an username and the last time he updated send via socket all the new mail received
-         * @param username username
-         * @param unixTimeLastUpdate list time the user asked for an update, expressed in UnixTimestamp
+         * writes the response of a request, the workers of the same session write one at a time
          */
-        private void sendNewMails(String username,long unixTimeLastUpdate,ObjectOutputStream out){
-            Email[] mailArray = null;
-            List<String[]> mailList = null;
-            try {
-                FileInputStream csv = new FileInputStream("data/" + username + ".csv");
-                //open a fileInputStream in order to use the FileLock present in that object
-                try {
-                    csv.getChannel().tryLock(0L, Long.MAX_VALUE, true); //shared lock for reading
-                    CSVReader reader = new CSVReader(new InputStreamReader(csv));
-                    mailList = reader.readAll();
-                    reader.close();
-                }finally {
-                    csv.close();//this releases the lock
+        private void respond(Message request, Message response) {
+            response.setRequestId(request.getRequestId());
+            write(response);
+        }
+
+        /**
+         * called by the worker that saved a mail, it only queues the message. If the queue is full the client is late:
+         * the pushes waiting are replaced by a hint, the client asks the mails it missed with an update
+         */
+        private void push(Message message) {
+            synchronized (pushes) {
+                if (closed)
+                    return;
+                if (!pushes.offer(message)) {
+                    pushes.clear();
+                    pushes.offer(new Message(Subscriptions.HINT));
+                    droppedPushes.incrementAndGet();
                 }
-                mailList = mailList.stream().filter(x -> { //convert from date as string to Epoch, easier and more secure comparison
-                    ZonedDateTime date = LocalDateTime.parse(x[3], dtf)
-                            .atZone(ZoneId.of("Europe/Rome"));
-                    return date.toEpochSecond() >= unixTimeLastUpdate;
-                }).collect(Collectors.toList()); //filters all the mail already possessed by the client, the ones received before unixTimeLastUpdate
-                ArrayList<Email> tempMail = new ArrayList<>();
-                //creates new mails from the CSV file. then send an array of those via socket
-                for (String[] line: mailList) {
-                    tempMail.add(new Email(line[0].split(" "),line[1],line[2],line[3],line[4],line[5]));
+                try {
+                    if (pusher == null)
+                        pusher = exec.submit(this::writePushes);
+                } catch (RejectedExecutionException e) {
+                    closed = true; //the server is closing
                 }
-                mailArray = tempMail.toArray(Email[]::new);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }catch (CsvException e) {
-                System.out.println(e.getMessage());
-                addLogMessage(e.getMessage());
             }
-            try {
-                Message mails = new Message("new mails",mailArray);
-                out.writeObject(mails);
-            } catch (IOException e) {
-                System.err.println(e.getMessage());
-                addLogMessage(e.getMessage());
-            }
-
         }
 
         /**
-         * every message that clients sends is composed as this: "action,username,password"
-         * this function analyzes the request and act accordingly, first checking the credentials, then executing the requested action
-         *
-         * @param action   what action the client wants to do
-         * @param username client username
-         * @param password hash of client password
+         * run by a thread of the session until it's closed, a stalled client blocks only this thread
          */
-        private void selectAction(String action, String username, String password, ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
-            if (!checkCredentials(username, password)) {
-                Message error = new Message("wrong credentials");
-                error.setError(true);
-                out.writeObject(error);
-                addLogMessage(username + " tried access with wrong credential from: " + socket.getInetAddress());
-                return;
+        private void writePushes() {
+            try {
+                while (!Thread.currentThread().isInterrupted())
+                    write(pushes.take());
+            } catch (InterruptedException e) {
+                //the session is closed
             }
-            switch (action) {
-                case "auth": {
-                    Message response = new Message("Authenticated");
-                    System.out.println(dtf.format(LocalDateTime.now()) + ": " + username + " Authenticated");
-                    addLogMessage(username + " Authenticated from: " + socket.getInetAddress());
-                    out.writeObject(response);
-                    //if the user doesn't have an inbox on server create it, then send all the emails contained in the inbox
-                    File f = new File("data/" + username + ".csv");
-                    if (!f.exists()) {
-                        try {
-                            f.createNewFile();
-                        } catch (IOException e) {
-                            System.err.println(e.getMessage());
-                            exit(1); //surely a permission problem
-                        }
-                    }
-                    sendNewMails(username, 0, out);
-                    break;
-                }
-                case "update": //user requested an update, send all the mail received after a given timestamp
-                    String updateTimeString = ((Message) in.readObject()).getText();
-                    try {
-                        long timestampTemp = Long.parseLong(updateTimeString);
-                        sendNewMails(username, timestampTemp, out);
-                    } catch (NumberFormatException e) {
-                        addLogMessage("user " + username + " requested an update with wrong timestamp, timestamp: " + updateTimeString);
-                        System.err.println(e.getMessage());
-                        Message error = new Message("cannot update, wrong timestamp");
-                        error.setError(true);
-                        out.writeObject(error);
-                    } finally {
-                        try {
-                            socket.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                    break;
-                case "send": {
-                    Message response;
-                    try {
-                        //waits for an object Email to be sent
-                        Email newMail = ((Message) in.readObject()).getEmail();
-                        //reads the receiver and filters them, excluding the non existing ones
-                        List<String> wrongReceivers = new ArrayList<>();
-                        for (String receiver : newMail.getReceivers()) {
-                            if (receiver.equals(username)) { // the user is trying to send an email to himself
-                                wrongReceivers.add(username);
-                            }else {
-                                if (users.containsKey(receiver)) {
-                                    //save the email in the correct file, if the user exist
-                                    newMail.setID(String.valueOf(Model.mailId.getAndIncrement()));
-                                    FileOutputStream csv = new FileOutputStream("data/" + receiver + ".csv", true);
-                                    try {
-                                        csv.getChannel().lock();//exclusive lock for writing
-                                        newMail.toCsv(new OutputStreamWriter(csv));
-                                    } finally {
-                                        csv.close(); // this also releases the lock
-                                    }
-                                } else {
-                                    wrongReceivers.add(receiver);
-                                }
-                            }
-                        }
-                        //returns to the client eventual wrong users
-                        if (wrongReceivers.size() != 0) {
-                            response = new Message("cant find users: " + String.join(",", wrongReceivers));
-                            response.setError(true);
-                        } else {
-                            response = new Message("status ok");
-                        }
-                        out.writeObject(response);
-                        int sentMail = (newMail.getReceivers().size() - wrongReceivers.size());
-                        addLogMessage("user " + username + " sent " + sentMail + "/" + newMail.getReceivers().size() + " email");
-
-                    } catch (IOException | ClassNotFoundException e) {
-                        addLogMessage("user " + username + " tried to send a mail, but an error occurred");
-                        addLogMessage(e.getMessage());
-                        System.err.println(e.getMessage());
-                    }
-                    break;
-                }
-                case "delete": {
-                    Message response;
-                    List<String[]> toMaintain = null;
-                    try {
-                        Message msg = (Message) in.readObject();
-                        //listens fot the IDs of the mails that the client wants to delete
-                        ArrayList<String> IDs = new ArrayList<>(Arrays.asList(msg.getText().split(",")));
-                        FileInputStream csv = new FileInputStream("data/" + username + ".csv");
-                        //open a fileInputStream in order to use the FileLock present in that object
-                        try {
-                            csv.getChannel().tryLock(0L, Long.MAX_VALUE, true); //shared lock for reading
-                            CSVReader reader = new CSVReader(new InputStreamReader(csv));
-                            //reads the csv file without the emails that needs to be deleted
-                            toMaintain = reader.readAll().stream().filter(x -> !IDs.contains(x[5])).collect(Collectors.toList());
-                            reader.close();
-                        }finally {
-                            csv.close();//this releases the lock
-                        }
-
-                        //writes te list back to the csv
-                        FileOutputStream csvWrite = new FileOutputStream("data/" + username + ".csv", true);
-                        try {
-                            csvWrite.getChannel().lock();//exclusive lock for writing
-                            CSVWriter writer = new CSVWriter(new OutputStreamWriter(csvWrite));
-                            writer.writeAll(toMaintain);
-                            response = new Message("status ok");
-                            out.writeObject(response);
-                            writer.close();
-                        } finally {
-                            csvWrite.close(); // this also releases the lock
-                        }
+        }
 
-                        addLogMessage("users " + username + " deleted " + IDs.size() + " emails");
-                    } catch (IOException | NullPointerException |CsvException e) {
-                        System.out.println(e.getMessage());
-                        addLogMessage(e.getMessage());
-                        response = new Message("cannot delete requested emails, wrong IDs");
-                        response.setError(true);
-                        out.writeObject(response);
-                    }
-                    break;
-                }
+        private void write(Message message) {
+            writing.lock();
+            try {
+                writingSince = System.currentTimeMillis();
+                stream.write(message);
+            } catch (IOException e) {
+                //the client is gone, its reader notices it too
+                System.err.println(e.getMessage());
+            } finally {
+                writingSince = 0;
+                writing.unlock();
             }
-
         }
     }
 
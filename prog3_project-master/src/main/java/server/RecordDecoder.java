@@ -0,0 +1,73 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * decodes the CSV records of a segment directly from a ByteBuffer (usually a memory mapped segment), without copying
+ * the bytes in the heap first. Understands the format written by CSVWriter: fields separated by commas, optionally
+ * enclosed in quotes, quotes inside a field written twice, one record per line
+ */
+class RecordDecoder {
+
+    private RecordDecoder() {
+    }
+
+    /**
+     * @param buffer bytes between position and limit are decoded, the buffer position is moved at the end
+     * @return every complete record found in the buffer
+     */
+    static List<String[]> decode(ByteBuffer buffer) {
+        List<String[]> records = new ArrayList<>();
+        ArrayList<String> fields = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            fields.add(nextField(buffer));
+            byte separator = buffer.hasRemaining() ? buffer.get() : (byte) '\n';
+            if (separator == '\r' && buffer.hasRemaining() && buffer.get(buffer.position()) == '\n')
+                separator = buffer.get();
+            if (separator != ',') {
+                records.add(fields.toArray(String[]::new));
+                fields.clear();
+            }
+        }
+        return records;
+    }
+
+    /**
+     * reads a field, leaving the buffer on the separator that follows it
+     */
+    private static String nextField(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.get(start) != '"') {
+            while (buffer.hasRemaining() && !isSeparator(buffer.get(buffer.position())))
+                buffer.get();
+            return decode(buffer, start, buffer.position());
+        }
+        buffer.get(); //opening quote
+        boolean escaped = false;
+        while (buffer.hasRemaining()) {
+            if (buffer.get() == '"') {
+                if (buffer.hasRemaining() && buffer.get(buffer.position()) == '"') {
+                    buffer.get(); //a quote written twice is a quote inside the field
+                    escaped = true;
+                } else {
+                    break; //closing quote
+                }
+            }
+        }
+        String field = decode(buffer, start + 1, buffer.position() - 1);
+        return escaped ? field.replace("\"\"", "\"") : field;
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ',' || b == '\n' || b == '\r';
+    }
+
+    private static String decode(ByteBuffer buffer, int from, int to) {
+        ByteBuffer field = buffer.duplicate();
+        field.limit(to).position(from);
+        return StandardCharsets.UTF_8.decode(field).toString();
+    }
+}
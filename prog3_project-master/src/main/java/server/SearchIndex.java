@@ -0,0 +1,370 @@
+package server;
+
+import shared.Email;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * inverted index of the mailbox of a user: for every term of subject, body and sender the sorted IDs of the mails
+ * containing it, so a search intersects a few lists instead of reading the segment.
+ * It's saved in usersDir/username.fts, a snapshot of the lists, and usersDir/username.ftl, the mails added and deleted
+ * since the snapshot. The log is written even when the index is not loaded, the lists are built the first time
+ * the user searches something. For a user who never searches the log would only grow: past MAX_UNLOADED_LOG it's
+ * dropped, the owner reconciles the index with the mailbox when it's loaded again. Not thread safe, the owner has to
+ * lock the mailbox
+ */
+class SearchIndex {
+    private static final int MAGIC = 0x46545349; //"FTSI"
+    private static final byte ADD = 1, DELETE = 2;
+    private static final int MIN_TERM = 2, MAX_TERM = 64; //shorter and longer words are not indexed
+    private static final long MAX_UNLOADED_LOG = 4 * 1024 * 1024; //bytes of log kept while the index is not loaded
+
+    private final Path snapshot, log;
+    private final double compactionThreshold;
+    private HashMap<String, Postings> terms = null; //loaded the first time it's needed
+    private HashSet<Long> docs, deleted; //every mail in the lists, the deleted ones are removed from the lists at compaction
+    private int logEntries = 0;
+
+    /**
+     * @param snapshot            file with the lists
+     * @param log                 file with the changes made after the snapshot
+     * @param compactionThreshold fraction of deleted mails after which the snapshot is written again
+     */
+    SearchIndex(Path snapshot, Path log, double compactionThreshold) {
+        this.snapshot = snapshot;
+        this.log = log;
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    boolean isLoaded() {
+        return terms != null;
+    }
+
+    /**
+     * frees the lists, every change is already in the files and they are read again by the next load
+     */
+    void unload() {
+        terms = null;
+        docs = null;
+        deleted = null;
+        logEntries = 0;
+    }
+
+    /**
+     * indexes new mails, the mails already indexed or deleted are ignored
+     */
+    void add(Collection<Email> mails) throws IOException {
+        ArrayList<byte[]> entries = new ArrayList<>();
+        int size = 0;
+        for (Email mail : mails) {
+            if (terms != null && (docs.contains(mail.getID()) || deleted.contains(mail.getID())))
+                continue;
+            Set<String> words = terms(mail);
+            ArrayList<byte[]> encoded = new ArrayList<>();
+            int entrySize = 1 + Long.BYTES + Integer.BYTES;
+            for (String word : words) {
+                byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+                encoded.add(bytes);
+                entrySize += Short.BYTES + bytes.length;
+            }
+            ByteBuffer entry = ByteBuffer.allocate(entrySize).put(ADD).putLong(mail.getID()).putInt(encoded.size());
+            for (byte[] bytes : encoded)
+                entry.putShort((short) bytes.length).put(bytes);
+            entries.add(entry.array());
+            size += entrySize;
+            if (terms != null)
+                index(mail.getID(), words);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] entry : entries)
+            buffer.put(entry);
+        append(buffer.flip(), entries.size());
+        if (terms != null && needsCompaction())
+            compact();
+    }
+
+    /**
+     * removes mails from the results, the lists are cleaned when the index is compacted
+     */
+    void remove(Collection<Long> ids) throws IOException {
+        ByteBuffer entries = ByteBuffer.allocate(ids.size() * (1 + Long.BYTES));
+        for (long id : ids) {
+            entries.put(DELETE).putLong(id);
+            if (terms != null && docs.contains(id))
+                deleted.add(id);
+        }
+        append(entries.flip(), ids.size());
+        if (terms != null && needsCompaction())
+            compact();
+    }
+
+    /**
+     * @param query words to search, a mail matches if it contains all of them
+     * @return the IDs of the matching mails, the most recent first
+     */
+    List<Long> search(String query) throws IOException {
+        load();
+        ArrayList<Postings> lists = new ArrayList<>();
+        for (String word : tokenize(query)) {
+            Postings postings = terms.get(word);
+            if (postings == null)
+                return new ArrayList<>(); //a word never seen, nothing can match
+            lists.add(postings);
+        }
+        ArrayList<Long> result = new ArrayList<>();
+        if (lists.isEmpty())
+            return result;
+        lists.sort((a, b) -> Integer.compare(a.size, b.size));
+        //starts from the shortest list, every other list is searched with a binary search
+        Postings shortest = lists.get(0);
+        for (int i = shortest.size - 1; i >= 0; i--) {
+            long id = shortest.ids[i];
+            boolean matches = !deleted.contains(id);
+            for (int j = 1; j < lists.size() && matches; j++)
+                matches = lists.get(j).contains(id);
+            if (matches)
+                result.add(id);
+        }
+        return result;
+    }
+
+    /**
+     * @return every mail indexed and not deleted
+     */
+    Set<Long> indexed() throws IOException {
+        load();
+        HashSet<Long> indexed = new HashSet<>(docs);
+        indexed.removeAll(deleted);
+        return indexed;
+    }
+
+    /**
+     * reads the snapshot and replays the log, an incomplete entry at the end of the log is a write interrupted by a crash
+     */
+    void load() throws IOException {
+        if (terms != null)
+            return;
+        terms = new HashMap<>();
+        docs = new HashSet<>();
+        deleted = new HashSet<>();
+        logEntries = 0;
+        if (Files.exists(snapshot)) {
+            ByteBuffer lists = ByteBuffer.wrap(Files.readAllBytes(snapshot));
+            try {
+                if (lists.getInt() != MAGIC)
+                    throw new IOException("corrupted search index " + snapshot);
+                for (int d = lists.getInt(); d > 0; d--)
+                    docs.add(lists.getLong());
+                for (int t = lists.getInt(); t > 0; t--) {
+                    String word = readTerm(lists);
+                    int count = lists.getInt();
+                    Postings postings = new Postings(count);
+                    for (int i = 0; i < count; i++)
+                        postings.add(lists.getLong());
+                    terms.put(word, postings);
+                }
+            } catch (BufferUnderflowException | IOException e) {
+                terms = null;
+                throw new IOException("corrupted search index " + snapshot);
+            }
+        }
+        if (!Files.exists(log))
+            return;
+        ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(log));
+        int complete = 0;
+        try {
+            while (entries.hasRemaining()) {
+                byte type = entries.get();
+                long id = entries.getLong();
+                if (type == ADD) {
+                    LinkedHashSet<String> words = new LinkedHashSet<>();
+                    for (int t = entries.getInt(); t > 0; t--)
+                        words.add(readTerm(entries));
+                    if (!docs.contains(id) && !deleted.contains(id))
+                        index(id, words);
+                } else if (type == DELETE) {
+                    if (docs.contains(id))
+                        deleted.add(id);
+                } else {
+                    break;
+                }
+                complete = entries.position();
+                logEntries++;
+            }
+        } catch (BufferUnderflowException e) {
+            //incomplete entry
+        }
+        if (complete < entries.capacity()) {
+            try (FileChannel channel = FileChannel.open(log, WRITE)) {
+                channel.truncate(complete);
+            }
+        }
+        if (needsCompaction())
+            compact();
+    }
+
+    /**
+     * the snapshot is written again when the log would take longer to replay than the snapshot to read,
+     * so the cost of a compaction is spread over many changes
+     */
+    private boolean needsCompaction() {
+        return logEntries > docs.size() / 2 || deleted.size() > compactionThreshold * docs.size();
+    }
+
+    /**
+     * writes a new snapshot without the deleted mails, then empties the log
+     */
+    private void compact() throws IOException {
+        HashMap<String, Postings> compacted = new HashMap<>();
+        int size = Integer.BYTES * 3;
+        for (Map.Entry<String, Postings> term : terms.entrySet()) {
+            Postings postings = term.getValue().without(deleted);
+            if (postings.size == 0)
+                continue;
+            compacted.put(term.getKey(), postings);
+            size += Short.BYTES + term.getKey().getBytes(StandardCharsets.UTF_8).length + Integer.BYTES + postings.size * Long.BYTES;
+        }
+        docs.removeAll(deleted);
+        size += docs.size() * Long.BYTES;
+        ByteBuffer lists = ByteBuffer.allocate(size).putInt(MAGIC).putInt(docs.size());
+        for (long id : docs)
+            lists.putLong(id);
+        lists.putInt(compacted.size());
+        for (Map.Entry<String, Postings> term : compacted.entrySet()) {
+            byte[] word = term.getKey().getBytes(StandardCharsets.UTF_8);
+            lists.putShort((short) word.length).put(word).putInt(term.getValue().size);
+            for (int i = 0; i < term.getValue().size; i++)
+                lists.putLong(term.getValue().ids[i]);
+        }
+        lists.flip();
+        Path tmp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            while (lists.hasRemaining())
+                channel.write(lists);
+            channel.force(false);
+        }
+        Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        //if the server crashes before this the log is replayed again, adding and deleting the same mails changes nothing
+        Files.deleteIfExists(log);
+        terms = compacted;
+        deleted.clear();
+        logEntries = 0;
+    }
+
+    private void index(long id, Set<String> words) {
+        docs.add(id);
+        for (String word : words)
+            terms.computeIfAbsent(word, w -> new Postings(4)).add(id);
+    }
+
+    private void append(ByteBuffer entries, int count) throws IOException {
+        if (!entries.hasRemaining())
+            return;
+        boolean drop;
+        try (FileChannel channel = FileChannel.open(log, CREATE, WRITE, APPEND)) {
+            while (entries.hasRemaining())
+                channel.write(entries);
+            drop = terms == null && channel.size() > MAX_UNLOADED_LOG;
+        }
+        logEntries += count;
+        //the snapshot alone misses the mails of the log, the owner adds them back comparing the index with the mailbox
+        if (drop)
+            Files.deleteIfExists(log);
+    }
+
+    private static String readTerm(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the distinct words of subject, body and sender
+     */
+    static Set<String> terms(Email mail) {
+        LinkedHashSet<String> words = new LinkedHashSet<>();
+        words.addAll(tokenize(mail.getSubject()));
+        words.addAll(tokenize(mail.getBody()));
+        words.addAll(tokenize(mail.getSender()));
+        return words;
+    }
+
+    /**
+     * splits a text in lower case words, anything that is not a letter or a digit separates two words
+     */
+    static List<String> tokenize(String text) {
+        ArrayList<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                if (i - start >= MIN_TERM && i - start <= MAX_TERM)
+                    words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * IDs of the mails containing a word, sorted in ascending order
+     */
+    private static class Postings {
+        long[] ids;
+        int size = 0;
+
+        Postings(int capacity) {
+            ids = new long[Math.max(capacity, 1)];
+        }
+
+        /**
+         * IDs are given in ascending order, so the new one almost always goes at the end
+         */
+        void add(long id) {
+            int i = size;
+            while (i > 0 && ids[i - 1] > id)
+                i--;
+            if (i > 0 && ids[i - 1] == id)
+                return;
+            if (size == ids.length)
+                ids = Arrays.copyOf(ids, size * 2);
+            System.arraycopy(ids, i, ids, i + 1, size - i);
+            ids[i] = id;
+            size++;
+        }
+
+        boolean contains(long id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+
+        Postings without(Set<Long> removed) {
+            Postings kept = new Postings(size);
+            for (int i = 0; i < size; i++) {
+                if (!removed.contains(ids[i]))
+                    kept.ids[kept.size++] = ids[i];
+            }
+            return kept;
+        }
+    }
+}
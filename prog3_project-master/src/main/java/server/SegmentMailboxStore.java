@@ -0,0 +1,1362 @@
+package server;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import com.opencsv.CSVWriter;
+import com.opencsv.RFC4180Parser;
+import com.opencsv.exceptions.CsvException;
+import shared.Email;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * MailboxStore that saves every mailbox as an append-only segment (usersDir/username.csv, the old mailboxes plus a column
+ * with the date as UnixTimestamp in milliseconds) and a sidecar index (usersDir/username.idx) containing, for each mail,
+ * its ID, its UnixTimestamp, its offset in the segment and its sequence number.
+ * The index is kept in memory sorted by date, so an update finds the new mails with a binary search and reads only the tail of the segment.
+ * Every mail of a mailbox gets the next sequence number and every delete the next position in the tombstones
+ * (usersDir/username.del): a cursor made of the two tells the changes after it, see changesSince.
+ * Sends and deletes are first saved in the WriteAheadLog, the segments are written after and synced only at its checkpoints
+ */
+class SegmentMailboxStore implements MailboxStore {
+    private static final int INDEX_MAGIC = 0x4D494458; //"MIDX"
+    private static final int INDEX_VERSION = 3; //version 1 had no magic and dates in seconds, version 2 no sequence numbers
+    private static final int HEADER_SIZE = 32; //magic, version, length of the segment covered by the index, last sequence number, token
+    private static final int ENTRY_SIZE = 32; //ID, UnixTimestamp in milliseconds, offset and sequence number, 8 bytes each
+    private static final DateTimeFormatter dtf = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss");
+    private static final ZoneId zone = ZoneId.of("Europe/Rome");
+    private static final int LOCK_STRIPES = 64;
+    private static final long RETRY_DELAY = 1000, MAX_RETRY_DELAY = 60000; //milliseconds between the writes of a mail that failed
+    private static final int LOADED_INDEXES = 64; //search indexes kept in memory, the least recently searched are unloaded
+
+    private final MailboxPaths paths;
+    private final double compactionThreshold;
+    private final long mmapThreshold;
+    private final int blockSize;
+    private final Compactor compactor;
+    private final MailboxWriter[] writers; //one for every data root, the volumes are written in parallel
+    private final ContentStore content;
+    private final ConcurrentHashMap<String, Segment> segments = new ConcurrentHashMap<>();
+    private final AtomicLong segmentReads = new AtomicLong(); //reads of records from the segments, the cache should spare most
+    private final MailboxLocks locks = new MailboxLocks(LOCK_STRIPES);
+    private final ConcurrentHashMap<String, SearchIndex> indexes = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, SearchIndex> loadedIndexes = new LinkedHashMap<>(16, 0.75f, true); //in access order
+    private final WriteAheadLog wal;
+    private final Set<String> unsynced = ConcurrentHashMap.newKeySet(); //segments written since the last checkpoint
+    //writes of the mails logged and not in the segments yet, by user: changed only in compute, removed when empty
+    private final ConcurrentHashMap<String, Set<CompletableFuture<Void>>> applying = new ConcurrentHashMap<>();
+
+    /**
+     * @param paths               where the files of the mailboxes are
+     * @param compactionThreshold fraction of deleted mails after which a mailbox gets rewritten
+     * @param mmapThreshold       size in bytes after which a segment is read through a memory mapping, negative to never map
+     * @param durability          when the WriteAheadLog is synced on disk
+     * @param syncInterval        milliseconds between two syncs of the log (with Durability.PERIODIC) and between two checkpoints
+     * @param blockSize           uncompressed size of the blocks of the compressed segments, 0 to write plain CSV segments
+     * @param walFileSize         size of the files of the WriteAheadLog
+     */
+    SegmentMailboxStore(MailboxPaths paths, double compactionThreshold, long mmapThreshold, WriteAheadLog.Durability durability,
+                        long syncInterval, int blockSize, long walFileSize) {
+        this.paths = paths;
+        this.compactionThreshold = compactionThreshold;
+        this.mmapThreshold = mmapThreshold;
+        this.blockSize = blockSize;
+        try {
+            paths.relocate(ContentStore.CONTENT);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.content = new ContentStore(paths.resolve(ContentStore.CONTENT, ".ref"));
+        this.compactor = new Compactor(this);
+        Thread compactorThread = new Thread(compactor, "compactor");
+        compactorThread.setDaemon(true);
+        compactorThread.start();
+        this.writers = new MailboxWriter[paths.roots()];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new MailboxWriter(this);
+            Thread writerThread = new Thread(writers[i], "mailbox-writer-" + i);
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+        try {
+            this.wal = new WriteAheadLog(paths.wal(), this, durability, syncInterval, walFileSize);
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Thread walThread = new Thread(wal, "wal-writer");
+        walThread.setDaemon(true);
+        walThread.start();
+    }
+
+    /**
+     * a new mailbox is created in the format chosen in the configuration, an existing one keeps its format until it's rewritten
+     */
+    @Override
+    public void create(String username) throws IOException {
+        paths.relocate(username);
+        Path data = paths.resolve(username, ".csv"), compressed = paths.resolve(username, ".csz");
+        if (Files.exists(data) || Files.exists(compressed))
+            return;
+        if (blockSize > 0)
+            DeflateBlocks.create(compressed);
+        else
+            Files.createFile(data);
+    }
+
+    /**
+     * the mail is saved in the WriteAheadLog and the connection can answer, the segments are written in background by
+     * the MailboxWriter together with the mails of the other connections.
+     * A mail with more than one receiver is saved once in the content segment, the mailboxes only get its ID and date
+     */
+    @Override
+    public void append(Collection<String> usernames, Email mail) throws IOException {
+        appendAll(Collections.singletonList(usernames), Collections.singletonList(mail));
+    }
+
+    /**
+     * every mail is queued in the log before waiting, so they are written (and synced) together
+     */
+    @Override
+    public void appendAll(List<Collection<String>> usernames, List<Email> mails) throws IOException {
+        ArrayList<byte[]> records = new ArrayList<>();
+        ArrayList<CompletableFuture<Long>> logged = new ArrayList<>();
+        for (int i = 0; i < mails.size(); i++) {
+            Email mail = mails.get(i);
+            if (mail.getTimestamp() == 0) //the date is parsed once, when the mail is saved
+                mail.setTimestamp(toEpochMillis(mail.getDate()));
+            byte[] record = toRecord(mail);
+            records.add(record);
+            logged.add(wal.append(WriteAheadLog.send(mail.getID(), mail.getTimestamp(), usernames.get(i), record)));
+        }
+        for (int i = 0; i < mails.size(); i++)
+            apply(usernames.get(i), mails.get(i), records.get(i), await(logged.get(i)));
+    }
+
+    /**
+     * writes in the segments of the receivers a mail saved in the log. Until it's written the reads of the receivers
+     * wait for it, see awaitApplied
+     *
+     * @param file file of the log containing the mail, negative for a mail replayed when the server starts
+     * @return completes when every segment is written
+     */
+    private CompletableFuture<Void> apply(Collection<String> receivers, Email mail, byte[] record, long file) {
+        return apply(receivers, mail, record, file, RETRY_DELAY);
+    }
+
+    /**
+     * if a segment can't be written the mail is saved again in the log, so its old file can be deleted by the checkpoints,
+     * and the write is tried again after retryDelay: a full disk that gets freed doesn't block the log forever.
+     * The receivers that already have it are skipped, as in a replay
+     *
+     * @param retryDelay milliseconds before trying again if it fails, doubled at every failure
+     */
+    private CompletableFuture<Void> apply(Collection<String> receivers, Email mail, byte[] record, long file, long retryDelay) {
+        byte[] original = record;
+        //a receiver listed twice would get two rows with the same ID and a reference its delete releases only once;
+        //the logs written before the receivers were checked can still have them
+        Collection<String> usernames = new LinkedHashSet<>(receivers);
+        long id = mail.getID();
+        ArrayList<CompletableFuture<Void>> written = new ArrayList<>();
+        CompletableFuture<Void> shared = CompletableFuture.completedFuture(null);
+        if (usernames.size() > 1) {
+            shared = writerOf(ContentStore.CONTENT).submit(ContentStore.CONTENT, mail, record, usernames.size());
+            written.add(shared);
+            record = toRecord(String.valueOf(id), String.valueOf(mail.getTimestamp()));
+        }
+        byte[] reference = record;
+        for (String username : usernames) {
+            //the content must be written before the references, so a reader never finds a reference without its content.
+            //With one writer the queue keeps the order, with more the references are queued after the content is written
+            CompletableFuture<Void> saved = writers.length > 1 && !shared.isDone()
+                    ? shared.thenCompose(done -> writerOf(username).submit(username, mail, reference, 0))
+                    : writerOf(username).submit(username, mail, reference, 0);
+            //added before its completion removes it, even if it's already written
+            applying.compute(username, (user, pending) -> {
+                Set<CompletableFuture<Void>> set = pending != null ? pending : new HashSet<>();
+                set.add(saved);
+                return set;
+            });
+            written.add(saved.whenComplete((done, e) -> applied(username, saved)));
+        }
+        CompletableFuture<Void> all = CompletableFuture.allOf(written.toArray(CompletableFuture[]::new));
+        all.whenComplete((done, e) -> {
+            if (e == null) {
+                if (file >= 0)
+                    wal.applied(file);
+                return;
+            }
+            System.err.println("cannot write the mail " + id + ", tried again in " + retryDelay + " ms: " + e.getMessage());
+            wal.append(WriteAheadLog.send(id, mail.getTimestamp(), usernames, original)).whenComplete((logged, logError) -> {
+                if (logError != null) {
+                    //the old file keeps it, it's written again when the server restarts
+                    System.err.println("cannot save again the mail " + id + ": " + logError.getMessage());
+                    return;
+                }
+                if (file >= 0)
+                    wal.applied(file);
+                CompletableFuture.delayedExecutor(retryDelay, TimeUnit.MILLISECONDS).execute(() ->
+                        apply(usernames, mail, original, logged, Math.min(2 * retryDelay, MAX_RETRY_DELAY)));
+            });
+        });
+        return all;
+    }
+
+    private void applied(String username, CompletableFuture<Void> written) {
+        applying.computeIfPresent(username, (user, pending) -> {
+            pending.remove(written);
+            return pending.isEmpty() ? null : pending;
+        });
+    }
+
+    /**
+     * waits until the mails sent to the user before the call are written in the segment, so a read right after a send
+     * finds the mail. The mails sent meanwhile are not waited, a mailbox receiving all the time can still be read
+     */
+    private void awaitApplied(String username) throws IOException {
+        ArrayList<CompletableFuture<Void>> pending = new ArrayList<>();
+        applying.computeIfPresent(username, (user, written) -> {
+            pending.addAll(written);
+            return written;
+        });
+        if (pending.isEmpty())
+            return;
+        try {
+            CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new)).get();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while saving the mails");
+        } catch (ExecutionException e) {
+            //the mail is written again when the server restarts, apply says it
+        }
+    }
+
+    /**
+     * saves an operation in the log and waits until it's written
+     *
+     * @return the file of the log containing it
+     */
+    private long log(byte[] operation) throws IOException {
+        return await(wal.append(operation));
+    }
+
+    /**
+     * @return the file of the log containing the operation, once it's written
+     */
+    private long await(CompletableFuture<Long> logged) throws IOException {
+        try {
+            return logged.get();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while saving the mails");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * applies the operations left in the log by the last run. Some of them could be already applied, in part or entirely:
+     * a mail already in a segment is not written again and a mail already deleted is not deleted again
+     */
+    private void recover() throws IOException {
+        List<ByteBuffer> operations = wal.recover();
+        if (operations.isEmpty())
+            return;
+        ArrayList<CompletableFuture<Void>> written = new ArrayList<>();
+        try {
+            for (ByteBuffer operation : operations) {
+                if (operation.get() == WriteAheadLog.SEND) {
+                    operation.getLong(); //ID and date are also in the record
+                    operation.getLong();
+                    ArrayList<String> usernames = new ArrayList<>();
+                    for (int i = operation.getInt(); i > 0; i--)
+                        usernames.add(WriteAheadLog.readString(operation));
+                    byte[] record = new byte[operation.getInt()];
+                    operation.get(record);
+                    Email mail = toEmail(RecordDecoder.decode(ByteBuffer.wrap(record)).get(0));
+                    written.add(apply(usernames, mail, record, -1));
+                } else {
+                    String username = WriteAheadLog.readString(operation);
+                    ArrayList<Long> ids = new ArrayList<>();
+                    for (int i = operation.getInt(); i > 0; i--)
+                        ids.add(operation.getLong());
+                    awaitApplied(username);
+                    applyDelete(username, ids);
+                }
+            }
+            CompletableFuture.allOf(written.toArray(CompletableFuture[]::new)).get();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("corrupted write-ahead log in " + paths.wal());
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while replaying the write-ahead log");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        wal.checkpoint();
+        System.out.println("replayed " + operations.size() + " operations of the write-ahead log");
+    }
+
+    /**
+     * appends a batch of mails to the segment of the user with a single write and indexes them, called by the MailboxWriter.
+     * The reference counts of the mails written in the content segment are saved here, once per batch
+     */
+    void write(String username, List<MailboxWriter.Pending> batch) throws IOException {
+        Segment segment = open(username);
+        long stamp = locks.writeLock(username);
+        try {
+            ArrayList<MailboxWriter.Pending> missing = new ArrayList<>();
+            for (MailboxWriter.Pending pending : batch) {
+                if (!segment.contains(pending.mail.getID())) //a replayed mail could be already there
+                    missing.add(pending);
+            }
+            if (missing.isEmpty())
+                return;
+            ByteBuffer[] records = new ByteBuffer[missing.size()];
+            for (int i = 0; i < records.length; i++)
+                records[i] = ByteBuffer.wrap(missing.get(i).record);
+            int indexed = segment.size;
+            long offset;
+            if (segment.blocks != null) {
+                offset = segment.blocks.append(records, false);
+            } else {
+                try (FileChannel data = FileChannel.open(segment.data, CREATE, WRITE, APPEND)) {
+                    offset = data.size();
+                    while (records[records.length - 1].hasRemaining())
+                        data.write(records);
+                }
+            }
+            unsynced.add(username);
+            if (username.equals(ContentStore.CONTENT)) {
+                HashMap<Long, Integer> receivers = new HashMap<>();
+                for (MailboxWriter.Pending pending : missing)
+                    receivers.put(pending.mail.getID(), pending.references);
+                content.add(receivers);
+            }
+            ArrayList<Email> mails = new ArrayList<>();
+            for (MailboxWriter.Pending pending : missing) {
+                segment.add(pending.mail.getID(), pending.mail.getTimestamp(), offset);
+                offset += pending.record.length;
+                mails.add(pending.mail);
+            }
+            segment.length = offset;
+            segment.saveIndex(indexed);
+            if (segment.blocks != null && segment.blocks.needsSealing(blockSize))
+                compactor.schedule(username);
+            if (!username.equals(ContentStore.CONTENT)) {
+                try {
+                    indexOf(username).add(mails);
+                } catch (IOException e) {
+                    //the mails are saved anyway, the index gets them back when it's loaded
+                    System.err.println("cannot index the mails of " + username + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            locks.unlock(username, stamp);
+        }
+    }
+
+    /**
+     * forces on disk the segments and the tombstones written since the last checkpoint and the reference counts,
+     * called by the WriteAheadLog before deleting the operations already applied
+     */
+    void checkpoint() throws IOException {
+        for (String username : unsynced) {
+            unsynced.remove(username);
+            Segment segment = open(username);
+            force(segment.data);
+            force(segment.tombstones);
+        }
+        content.sync();
+    }
+
+    private static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, WRITE)) {
+            channel.force(false);
+        } catch (NoSuchFileException e) {
+            //rewritten meanwhile, the new file was already synced, or no mail deleted yet
+        }
+    }
+
+    /**
+     * an update with nothing new only looks at the newest date of the index with an optimistic read, without locking
+     */
+    @Override
+    public List<Email> readSince(String username, long unixTime) throws IOException {
+        awaitApplied(username);
+        Segment segment = open(username);
+        long from = Math.max(unixTime, Long.MIN_VALUE / 1000) * 1000;
+        if (!hasSince(username, segment, from))
+            return new ArrayList<>();
+        ArrayList<String[]> records = new ArrayList<>();
+        long stamp = locks.readLock(username);
+        try {
+            //the index is in memory, find the mails to send without touching the disk
+            int[] matched = segment.times.since(from);
+            int found = 0;
+            for (int position : matched) {
+                if (!segment.deleted.contains(segment.ids[position]))
+                    matched[found++] = position;
+            }
+            if (found == 0)
+                return new ArrayList<>();
+
+            //dates are written by the clients, so between the new mails there could be some older ones, they are read and skipped
+            int first = matched[0], last = matched[found - 1];
+            List<String[]> tail = readRecords(segment, segment.offsets[first], segment.end(last));
+            for (int i = 0; i < found; i++)
+                records.add(tail.get(matched[i] - first));
+        } finally {
+            locks.unlock(username, stamp);
+        }
+        //the lock of the user is released before reading the content segment, the locks are never nested
+        return toEmails(records);
+    }
+
+    /**
+     * the mails after the cursor are found with a binary search on the sequence numbers, the deletes are the tombstones
+     * after its position: both cost only the changes. A cursor of another index (rebuilt after a crash), or older than
+     * the last rewrite for the deletes, gets the IDs of every mail in the mailbox instead of the deletes
+     */
+    @Override
+    public MailboxChanges changesSince(String username, String cursor, boolean read) throws IOException {
+        awaitApplied(username);
+        Segment segment = open(username);
+        long[] from = MailboxChanges.parse(cursor);
+        ArrayList<String[]> records = new ArrayList<>();
+        ArrayList<Long> added = new ArrayList<>();
+        List<Long> deleted = null, live = null;
+        String next;
+        long stamp = locks.readLock(username);
+        try {
+            boolean known = from != null && from[0] == segment.token && from[1] <= segment.lastSeq && from[2] <= segment.deletes();
+            int first = segment.firstAfter(known ? from[1] : 0);
+            ArrayList<Integer> matched = new ArrayList<>();
+            for (int position = first; position < segment.size; position++)
+                if (!segment.deleted.contains(segment.ids[position])) {
+                    matched.add(position);
+                    added.add(segment.ids[position]);
+                }
+            if (read && !matched.isEmpty()) {
+                List<String[]> tail = readRecords(segment, segment.offsets[first], segment.end(matched.get(matched.size() - 1)));
+                for (int position : matched)
+                    records.add(tail.get(position - first));
+            }
+            if (known && from[2] >= segment.deleteBase) {
+                deleted = new ArrayList<>();
+                for (int i = (int) (from[2] - segment.deleteBase); i < segment.tombstonedSize; i++)
+                    deleted.add(segment.tombstoned[i]);
+            } else {
+                live = new ArrayList<>();
+                for (int position = 0; position < segment.size; position++)
+                    if (!segment.deleted.contains(segment.ids[position]))
+                        live.add(segment.ids[position]);
+            }
+            next = MailboxChanges.cursor(segment.token, segment.lastSeq, segment.deletes());
+        } finally {
+            locks.unlock(username, stamp);
+        }
+        //the lock of the user is released before reading the content segment, the locks are never nested
+        return new MailboxChanges(read ? toEmails(records) : null, added, deleted, live, next);
+    }
+
+    /**
+     * the mails are taken backwards from the one before the continuation, skipping the deleted ones, and only the
+     * records of the page are read. The sequence numbers don't change when the segment is rewritten, so the pages go on
+     * after a compaction; a continuation of another index starts again from the newest mail, with a new cursor
+     */
+    @Override
+    public MailboxPage page(String username, String continuation, int size, boolean read) throws IOException {
+        awaitApplied(username);
+        Segment segment = open(username);
+        long[] from = MailboxPage.parse(continuation);
+        ArrayList<String[]> records = new ArrayList<>();
+        ArrayList<Long> ids = new ArrayList<>();
+        String next = null, cursor = null;
+        long stamp = locks.readLock(username);
+        try {
+            boolean known = from != null && from[0] == segment.token;
+            int position = (known ? segment.firstAfter(from[1] - 1) : segment.size) - 1;
+            ArrayList<Integer> matched = new ArrayList<>(); //from the newest
+            for (; position >= 0 && matched.size() < size; position--)
+                if (!segment.deleted.contains(segment.ids[position])) {
+                    matched.add(position);
+                    ids.add(segment.ids[position]);
+                }
+            if (!matched.isEmpty()) {
+                int first = matched.get(matched.size() - 1);
+                if (read) {
+                    List<String[]> range = readRecords(segment, segment.offsets[first], segment.end(matched.get(0)));
+                    for (int matchedPosition : matched)
+                        records.add(range.get(matchedPosition - first));
+                }
+                if (position >= 0)
+                    next = MailboxPage.continuation(segment.token, segment.seqs[first]);
+            }
+            if (!known)
+                cursor = MailboxChanges.cursor(segment.token, segment.lastSeq, segment.deletes());
+        } finally {
+            locks.unlock(username, stamp);
+        }
+        return new MailboxPage(read ? toEmails(records) : null, ids, next, cursor);
+    }
+
+    @Override
+    public List<Email> fetch(String username, Collection<Long> IDs) throws IOException {
+        awaitApplied(username);
+        return read(username, IDs);
+    }
+
+    /**
+     * @return false only if the segment surely has no mail since the given time
+     */
+    private boolean hasSince(String username, Segment segment, long from) {
+        long stamp = locks.tryOptimisticRead(username);
+        boolean newer;
+        try {
+            newer = segment.times.hasSince(from);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            newer = true; //the index was growing meanwhile, validate fails anyway
+        }
+        return newer || !locks.validate(username, stamp);
+    }
+
+    /**
+     * reads some mails of the user, in the order they arrived
+     *
+     * @param ids IDs of the mails, the ones not in the mailbox are ignored
+     */
+    private List<Email> read(String username, Collection<Long> ids) throws IOException {
+        Segment segment = open(username);
+        List<String[]> records;
+        long stamp = locks.readLock(username);
+        try {
+            ArrayList<Integer> positions = new ArrayList<>();
+            for (long id : ids) {
+                Integer position = segment.positions.get(id);
+                if (position != null && !segment.deleted.contains(id))
+                    positions.add(position);
+            }
+            Collections.sort(positions);
+            records = readRecords(segment, positions);
+        } finally {
+            locks.unlock(username, stamp);
+        }
+        return toEmails(records);
+    }
+
+    /**
+     * converts the records read from a segment, the references are resolved reading the content segment.
+     * Must be called without holding any lock
+     */
+    private List<Email> toEmails(List<String[]> records) throws IOException {
+        ArrayList<Long> shared = new ArrayList<>();
+        for (String[] record : records) {
+            if (isReference(record))
+                shared.add(parseID(record[0]));
+        }
+        Map<Long, Email> contents = shared.isEmpty() ? Map.of() : readContent(shared);
+        ArrayList<Email> mails = new ArrayList<>();
+        for (String[] record : records) {
+            Email mail = isReference(record) ? contents.get(parseID(record[0])) : toEmail(record);
+            if (mail != null) //a missing content is a send interrupted by a crash, or the mail was deleted meanwhile
+                mails.add(mail);
+        }
+        return mails;
+    }
+
+    /**
+     * the index only gives candidates, the mails deleted from the segment and not from the index yet are filtered here
+     */
+    @Override
+    public List<Long> search(String username, String query) throws IOException {
+        awaitApplied(username);
+        Segment segment = open(username);
+        SearchIndex index = indexOf(username);
+        List<Long> found = null;
+        while (found == null) {
+            if (!index.isLoaded())
+                reconcile(username, segment, index);
+            long stamp = locks.readLock(username);
+            try {
+                if (index.isLoaded()) { //else unloaded by another search before taking the lock
+                    found = index.search(query);
+                    found.removeIf(id -> !segment.positions.containsKey(id) || segment.deleted.contains(id));
+                }
+            } finally {
+                locks.unlock(username, stamp);
+            }
+        }
+        searched(username, index);
+        return found;
+    }
+
+    /**
+     * keeps loaded only the LOADED_INDEXES searched last, the others are unloaded under the lock of their user.
+     * Called without holding any lock, the locks are never nested
+     */
+    private void searched(String username, SearchIndex index) {
+        List<Map.Entry<String, SearchIndex>> evicted = new ArrayList<>();
+        synchronized (loadedIndexes) {
+            loadedIndexes.put(username, index);
+            Iterator<Map.Entry<String, SearchIndex>> eldest = loadedIndexes.entrySet().iterator();
+            while (loadedIndexes.size() > LOADED_INDEXES) {
+                evicted.add(eldest.next());
+                eldest.remove();
+            }
+        }
+        for (Map.Entry<String, SearchIndex> entry : evicted) {
+            long stamp = locks.writeLock(entry.getKey());
+            try {
+                entry.getValue().unload();
+            } finally {
+                locks.unlock(entry.getKey(), stamp);
+            }
+        }
+    }
+
+    /**
+     * loads the search index of the user and adds the mails it's missing: the ones received before the index existed,
+     * or whose entry was lost in a crash. The mails deleted from the segment are removed from the index
+     */
+    private void reconcile(String username, Segment segment, SearchIndex index) throws IOException {
+        HashSet<Long> missing = new HashSet<>();
+        int live = 0;
+        long stamp = locks.writeLock(username);
+        try {
+            Set<Long> indexed = index.indexed();
+            for (long id : segment.positions.keySet()) {
+                if (segment.deleted.contains(id))
+                    continue;
+                live++;
+                if (!indexed.remove(id))
+                    missing.add(id);
+            }
+            if (!indexed.isEmpty())
+                index.remove(indexed); //not in the mailbox anymore
+        } finally {
+            locks.unlock(username, stamp);
+        }
+        if (missing.isEmpty())
+            return;
+        //an old mailbox indexed for the first time is read all at once, instead of one mail at a time
+        List<Email> mails = missing.size() > live / 2 ? readSince(username, Long.MIN_VALUE) : read(username, missing);
+        mails.removeIf(mail -> !missing.contains(mail.getID()));
+        stamp = locks.writeLock(username);
+        try {
+            index.add(mails);
+        } finally {
+            locks.unlock(username, stamp);
+        }
+    }
+
+    private SearchIndex indexOf(String username) {
+        return indexes.computeIfAbsent(username, user -> new SearchIndex(paths.resolve(user, ".fts"),
+                paths.resolve(user, ".ftl"), compactionThreshold));
+    }
+
+    private MailboxWriter writerOf(String username) {
+        return writers[paths.rootOf(username)];
+    }
+
+    /**
+     * reads from the content segment the mails saved once for all their receivers
+     *
+     * @param ids IDs of the mails
+     * @return the mails found, by ID
+     */
+    private Map<Long, Email> readContent(List<Long> ids) throws IOException {
+        Segment segment = open(ContentStore.CONTENT);
+        long stamp = locks.readLock(ContentStore.CONTENT);
+        try {
+            ArrayList<Integer> positions = new ArrayList<>();
+            for (long id : ids) {
+                Integer position = segment.positions.get(id);
+                if (position != null && !segment.deleted.contains(id))
+                    positions.add(position);
+            }
+            HashMap<Long, Email> mails = new HashMap<>();
+            for (String[] record : readRecords(segment, positions))
+                mails.put(parseID(record[5]), toEmail(record));
+            return mails;
+        } finally {
+            locks.unlock(ContentStore.CONTENT, stamp);
+        }
+    }
+
+    /**
+     * deleting a mail only appends its ID to the tombstones of the mailbox (usersDir/username.del), readers skip
+     * the deleted mails and the Compactor rewrites the segment when there are too many of them.
+     * When the last receiver of a shared mail deletes it, the mail is deleted from the content segment too
+     */
+    @Override
+    public int delete(String username, Collection<Long> IDs) throws IOException {
+        awaitApplied(username); //a mail deleted before being written would come back when it's written
+        long file = log(WriteAheadLog.delete(username, IDs));
+        try {
+            return applyDelete(username, IDs);
+        } finally {
+            //also if it failed: kept in the log it would be replayed at every start, failing the same way
+            wal.applied(file);
+        }
+    }
+
+    /**
+     * a delete replayed after a crash only deletes the mails still there. If the server crashed between the tombstones
+     * and the release of the shared mails, their count stays one higher: the content is kept, never lost
+     */
+    private int applyDelete(String username, Collection<Long> IDs) throws IOException {
+        List<Long> removed = tombstone(username, IDs);
+        if (!removed.isEmpty()) {
+            long stamp = locks.writeLock(username);
+            try {
+                indexOf(username).remove(removed);
+            } finally {
+                locks.unlock(username, stamp);
+            }
+        }
+        List<Long> unreferenced = content.release(removed);
+        if (!unreferenced.isEmpty())
+            tombstone(ContentStore.CONTENT, unreferenced);
+        return removed.size();
+    }
+
+    /**
+     * @return the IDs of the mails actually deleted, the others were not in the segment or already deleted
+     */
+    private List<Long> tombstone(String username, Collection<Long> ids) throws IOException {
+        Segment segment = open(username);
+        long stamp = locks.writeLock(username);
+        try {
+            ArrayList<Long> removed = new ArrayList<>();
+            ByteBuffer tombstones = ByteBuffer.allocate(ids.size() * Long.BYTES);
+            for (long id : ids) {
+                if (segment.positions.containsKey(id) && segment.deleted.add(id)) {
+                    tombstones.putLong(id);
+                    removed.add(id);
+                    segment.tombstoned(id);
+                }
+            }
+            tombstones.flip();
+            if (removed.isEmpty())
+                return removed;
+            try (FileChannel del = FileChannel.open(segment.tombstones, CREATE, WRITE, APPEND)) {
+                writeFully(del, tombstones);
+            }
+            unsynced.add(username);
+            if (segment.deadRatio() > compactionThreshold)
+                compactor.schedule(username);
+            return removed;
+        } finally {
+            locks.unlock(username, stamp);
+        }
+    }
+
+    /**
+     * rewrites the segment of the user without the deleted mails, then forgets the tombstones.
+     * A compressed segment with only new mails to compress is sealed, without being rewritten
+     */
+    void compact(String username) throws IOException {
+        Segment segment = open(username);
+        long stamp = locks.writeLock(username);
+        try {
+            if (segment.deadRatio() > compactionThreshold)
+                rewrite(username, segment);
+            else if (segment.blocks != null && segment.blocks.needsSealing(blockSize))
+                segment.blocks.seal(blockSize);
+        } finally {
+            locks.unlock(username, stamp);
+        }
+    }
+
+    /**
+     * writes a new segment with the mails that are not deleted, in the current format, and replaces the old one.
+     * The old index is removed before replacing the segment, if the server crashes in between the index is rebuilt.
+     * Must be called holding the write lock of the segment
+     */
+    private void rewrite(String username, Segment segment) throws IOException {
+        List<String[]> records = readRecords(segment, 0, segment.length);
+        Path data = paths.resolve(username, blockSize > 0 ? ".csz" : ".csv");
+        Path old = paths.resolve(username, blockSize > 0 ? ".csv" : ".csz");
+        Path tmpData = data.resolveSibling(data.getFileName() + ".tmp");
+        Path tmpIndex = segment.index.resolveSibling(segment.index.getFileName() + ".tmp");
+        Segment rewritten = new Segment(tmpData, tmpIndex, segment.tombstones);
+        try (FileChannel out = FileChannel.open(tmpData, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            DeflateBlocks.Writer blocks = blockSize > 0 ? new DeflateBlocks.Writer(out, blockSize) : null;
+            long offset = 0;
+            for (int i = 0; i < records.size(); i++) {
+                if (segment.deleted.contains(segment.ids[i]))
+                    continue;
+                String[] record = records.get(i);
+                byte[] bytes = isReference(record) ? toRecord(record) : toRecord(toEmail(record));
+                if (blocks != null)
+                    blocks.add(bytes);
+                else
+                    writeFully(out, ByteBuffer.wrap(bytes));
+                rewritten.add(segment.ids[i], segment.timestamps[i], offset, segment.seqs[i]);
+                offset += bytes.length;
+            }
+            if (blocks != null)
+                blocks.finish();
+            rewritten.length = offset;
+            out.force(true);
+        }
+        //the mails kept have the same sequence numbers, an empty segment still remembers the last one
+        rewritten.lastSeq = segment.lastSeq;
+        rewritten.token = segment.token;
+        rewritten.saveIndex(0);
+        //the deleted mails are remembered until the log can't replay their send anymore, or they would be written again
+        rewritten.ghosts.addAll(segment.deleted);
+        if (wal.oldest() <= segment.ghostsUntil)
+            rewritten.ghosts.addAll(segment.ghosts);
+        rewritten.ghostsUntil = wal.current();
+        //the ghosts forgotten are the oldest tombstones, the others keep their position so the cursors after the
+        //forgotten ones still get the deletes; the forgotten ones are only counted, see changesSince
+        int kept = segment.tombstonedSize;
+        while (kept > 0 && rewritten.ghosts.contains(segment.tombstoned[kept - 1]))
+            kept--;
+        rewritten.deleteBase = segment.deleteBase + kept;
+        HashSet<Long> remaining = new HashSet<>(rewritten.ghosts);
+        for (int i = kept; i < segment.tombstonedSize; i++) {
+            rewritten.tombstoned(segment.tombstoned[i]);
+            remaining.remove(segment.tombstoned[i]);
+        }
+        for (long id : remaining) //not expected, they are told again as new deletes
+            rewritten.tombstoned(id);
+        Path tmpTombstones = segment.tombstones.resolveSibling(segment.tombstones.getFileName() + ".tmp");
+        if (rewritten.deletes() > 0) {
+            try (FileChannel del = FileChannel.open(tmpTombstones, CREATE, WRITE, TRUNCATE_EXISTING)) {
+                ByteBuffer tombstones = ByteBuffer.allocate((rewritten.tombstonedSize + 1) * Long.BYTES);
+                tombstones.putLong(-rewritten.deleteBase - 1);
+                for (int i = 0; i < rewritten.tombstonedSize; i++)
+                    tombstones.putLong(rewritten.tombstoned[i]);
+                writeFully(del, tombstones.flip());
+                del.force(false);
+            }
+        }
+        Files.deleteIfExists(segment.index);
+        Files.move(tmpData, data, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        //if the server crashes before this, both formats exist and load keeps the compressed one
+        Files.deleteIfExists(old);
+        Files.move(tmpIndex, segment.index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (rewritten.deletes() == 0)
+            Files.deleteIfExists(segment.tombstones);
+        else
+            Files.move(tmpTombstones, segment.tombstones, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        segment.copyFrom(rewritten);
+        segment.data = data;
+        segment.blocks = blockSize > 0 ? DeflateBlocks.load(data) : null;
+        if (username.equals(ContentStore.CONTENT))
+            content.saveSnapshot(); //the counts of the mails deleted from the content segment are not needed anymore
+    }
+
+    /**
+     * rewrites the segment of the user in the format of the configuration, used by SegmentMigration
+     *
+     * @return false if the user has no mailbox
+     */
+    boolean convert(String username) throws IOException {
+        paths.relocate(username);
+        if (!Files.exists(paths.resolve(username, ".csv")) && !Files.exists(paths.resolve(username, ".csz")))
+            return false;
+        Segment segment = open(username);
+        long stamp = locks.writeLock(username);
+        try {
+            rewrite(username, segment);
+            return true;
+        } finally {
+            locks.unlock(username, stamp);
+        }
+    }
+
+    /**
+     * reads and decodes every record of the segment of the user, used by SegmentMigration to measure the decoding
+     *
+     * @return the uncompressed bytes read
+     */
+    long decodeAll(String username) throws IOException {
+        Segment segment = open(username);
+        long stamp = locks.readLock(username);
+        try {
+            readRecords(segment, 0, segment.length);
+            return segment.length;
+        } finally {
+            locks.unlock(username, stamp);
+        }
+    }
+
+    @Override
+    public String stats() {
+        int searchIndexes;
+        synchronized (loadedIndexes) {
+            searchIndexes = loadedIndexes.size();
+        }
+        return "segments: " + segments.size() + " loaded, " + segmentReads.get() + " reads, " + searchIndexes + " search indexes loaded, " + content.stats() + ", " + wal.stats() + ", " + writerStats() + ", " + locks.stats();
+    }
+
+    @Override
+    public void close() {
+        wal.stop();
+        for (MailboxWriter writer : writers)
+            writer.stop();
+        compactor.stop();
+        segments.clear();
+    }
+
+    private String writerStats() {
+        StringBuilder stats = new StringBuilder();
+        for (int i = 0; i < writers.length; i++)
+            stats.append(i == 0 ? "" : ", ").append(writers.length == 1 ? "" : "root " + i + " ").append(writers[i].stats());
+        return stats.toString();
+    }
+
+    /**
+     * @return the segment of the user, loading its index the first time it's requested
+     */
+    private Segment open(String username) throws IOException {
+        try {
+            return segments.computeIfAbsent(username, user -> {
+                try {
+                    return load(user);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * reads the index of a mailbox, if the index is missing or it doesn't cover the whole segment (the server crashed
+     * between the two writes) the missing part is rebuilt scanning the segment.
+     * A segment still containing rows of the old format, without the UnixTimestamp column, is converted once here
+     */
+    private Segment load(String username) throws IOException {
+        paths.relocate(username);
+        Segment segment = new Segment(paths.resolve(username, ".csv"), paths.resolve(username, ".idx"),
+                paths.resolve(username, ".del"));
+        Path compressed = paths.resolve(username, ".csz");
+        if (Files.exists(compressed)) {
+            //a plain segment next to the compressed one is a rewrite interrupted by a crash, the compressed one is complete
+            Files.deleteIfExists(segment.data);
+            segment.data = compressed;
+            segment.blocks = DeflateBlocks.load(compressed);
+        } else if (blockSize > 0 && !Files.exists(segment.data)) {
+            segment.data = compressed;
+            segment.blocks = DeflateBlocks.create(compressed);
+        }
+        long dataLength = segment.blocks != null ? segment.blocks.length() : Files.exists(segment.data) ? Files.size(segment.data) : 0;
+        if (Files.exists(segment.index)) {
+            ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(segment.index));
+            boolean valid = index.remaining() >= HEADER_SIZE && index.getInt() == INDEX_MAGIC && index.getInt() == INDEX_VERSION;
+            long covered = valid ? index.getLong() : Long.MAX_VALUE;
+            if (covered <= dataLength) {
+                segment.lastSeq = index.getLong();
+                segment.token = index.getLong();
+                while (index.remaining() >= ENTRY_SIZE) {
+                    long id = index.getLong(), epoch = index.getLong(), offset = index.getLong(), seq = index.getLong();
+                    if (offset >= covered)
+                        break;
+                    segment.add(id, epoch, offset, seq);
+                }
+                segment.length = covered;
+            }
+        }
+        if (segment.token == 0) //a new index, the cursors of the old one (if any) are not valid anymore
+            segment.token = ThreadLocalRandom.current().nextLong() | 1;
+        boolean legacy = false;
+        if (segment.length < dataLength) {
+            int indexed = segment.size;
+            legacy = indexTail(segment, dataLength);
+            segment.saveIndex(indexed);
+        }
+        if (Files.exists(segment.tombstones)) {
+            ByteBuffer tombstones = ByteBuffer.wrap(Files.readAllBytes(segment.tombstones));
+            while (tombstones.remaining() >= Long.BYTES) {
+                long id = tombstones.getLong();
+                if (id < 0) { //written first by a rewrite, the deletes before it
+                    segment.deleteBase = -id - 1;
+                    continue;
+                }
+                segment.tombstoned(id);
+                if (segment.positions.containsKey(id))
+                    segment.deleted.add(id);
+                else
+                    segment.ghosts.add(id); //compacted away, the log of the last run is already replayed
+            }
+        }
+        if (legacy)
+            rewrite(username, segment);
+        else if (segment.deadRatio() > compactionThreshold)
+            compactor.schedule(username);
+        return segment;
+    }
+
+    /**
+     * adds to the index every complete record between the end of the indexed part and dataLength.
+     * an incomplete record at the end of the segment is a write interrupted by a crash, it gets cut away
+     *
+     * @return true if some of the records are in the old format, without the UnixTimestamp column
+     */
+    private boolean indexTail(Segment segment, long dataLength) throws IOException {
+        byte[] tail = segment.blocks != null ? segment.blocks.read(segment.length, dataLength) : readBytes(segment.data, segment.length, dataLength);
+        RFC4180Parser parser = new RFC4180Parser();
+        boolean quoted = false, legacy = false;
+        int start = 0;
+        for (int i = 0; i < tail.length; i++) {
+            if (tail[i] == '"') {
+                quoted = !quoted; //an escaped quote is written twice, so it toggles the state two times
+            } else if (tail[i] == '\n' && !quoted) {
+                String[] record = parser.parseLine(new String(tail, start, i - start, StandardCharsets.UTF_8));
+                if (isReference(record)) {
+                    segment.add(parseID(record[0]), Long.parseLong(record[1]), segment.length + start);
+                } else if (isIndexed(record)) {
+                    Email mail = toEmail(record);
+                    legacy |= record.length == 6;
+                    segment.add(mail.getID(), mail.getTimestamp(), segment.length + start);
+                }
+                start = i + 1;
+            }
+        }
+        segment.length += start;
+        if (segment.length < dataLength && segment.blocks == null) { //a compressed segment only has complete frames
+            try (FileChannel data = FileChannel.open(segment.data, WRITE)) {
+                data.truncate(segment.length);
+            }
+        }
+        return legacy;
+    }
+
+    /**
+     * big segments are mapped in memory and the records are decoded straight from the mapping, so a read doesn't copy
+     * the whole tail in the heap. The mapping is kept with the segment and done again only when the segment grows.
+     * Must be called holding at least the read lock of the segment, two readers may both map it and one mapping is kept
+     */
+    private List<String[]> readRecords(Segment segment, long from, long to) throws IOException {
+        segmentReads.incrementAndGet();
+        if (segment.blocks != null)
+            return indexed(RecordDecoder.decode(ByteBuffer.wrap(segment.blocks.read(from, to))));
+        if (mmapThreshold < 0 || segment.length < mmapThreshold || segment.length > Integer.MAX_VALUE)
+            return indexed(readRecords(segment.data, from, to));
+        MappedByteBuffer mapping = segment.mapping;
+        if (mapping == null || mapping.capacity() < to) {
+            try (FileChannel channel = FileChannel.open(segment.data, READ)) {
+                mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.length);
+            }
+            segment.mapping = mapping;
+        }
+        ByteBuffer tail = mapping.duplicate();
+        tail.limit((int) to).position((int) from);
+        return indexed(RecordDecoder.decode(tail));
+    }
+
+    /**
+     * the callers match the records read to the positions of the index, so the rows indexTail skipped are skipped here too
+     */
+    private static List<String[]> indexed(List<String[]> records) {
+        records.removeIf(record -> !isIndexed(record));
+        return records;
+    }
+
+    /**
+     * reads some records of a segment, each one on its own, must be called holding at least the read lock of the segment
+     *
+     * @param positions positions of the records in the segment
+     */
+    private List<String[]> readRecords(Segment segment, List<Integer> positions) throws IOException {
+        ArrayList<String[]> records = new ArrayList<>();
+        if (positions.isEmpty())
+            return records;
+        if (segment.blocks == null)
+            segmentReads.incrementAndGet(); //the blocks are counted one by one
+        if (segment.blocks != null) {
+            //the last block inflated is kept, so the records in the same block are inflated once
+            for (int position : positions)
+                records.addAll(readRecords(segment, segment.offsets[position], segment.end(position)));
+        } else if (mmapThreshold < 0 || segment.length < mmapThreshold || segment.length > Integer.MAX_VALUE) {
+            try (FileChannel channel = FileChannel.open(segment.data, READ)) {
+                for (int position : positions) {
+                    byte[] bytes = readBytes(channel, segment.data, segment.offsets[position], segment.end(position));
+                    records.addAll(indexed(RecordDecoder.decode(ByteBuffer.wrap(bytes))));
+                }
+            }
+        } else {
+            for (int position : positions)
+                records.addAll(readRecords(segment, segment.offsets[position], segment.end(position)));
+        }
+        return records;
+    }
+
+    private static List<String[]> readRecords(Path data, long from, long to) throws IOException {
+        byte[] bytes = readBytes(data, from, to);
+        try (CSVReader reader = new CSVReaderBuilder(new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8))
+                .withCSVParser(new RFC4180Parser()).build()) {
+            return reader.readAll();
+        } catch (CsvException e) {
+            throw new IOException("corrupted mailbox " + data + ": " + e.getMessage());
+        }
+    }
+
+    private static byte[] readBytes(Path data, long from, long to) throws IOException {
+        try (FileChannel channel = FileChannel.open(data, READ)) {
+            return readBytes(channel, data, from, to);
+        }
+    }
+
+    private static byte[] readBytes(FileChannel channel, Path data, long from, long to) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (to - from));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, from + buffer.position()) < 0)
+                throw new IOException("mailbox " + data + " is shorter than its index");
+        }
+        return buffer.array();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * @return the mail as a CSV line, encoded in UTF-8
+     */
+    static byte[] toRecord(Email mail) {
+        StringWriter line = new StringWriter();
+        mail.toCsv(line);
+        return line.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the fields as a CSV line, encoded in UTF-8
+     */
+    static byte[] toRecord(String... fields) {
+        StringWriter line = new StringWriter();
+        try (CSVWriter writer = new CSVWriter(line)) {
+            writer.writeNext(fields);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); //a StringWriter never fails
+        }
+        return line.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return true if the record is the reference to a mail saved in the content segment: only ID and UnixTimestamp
+     */
+    static boolean isReference(String[] record) {
+        return record.length == 2;
+    }
+
+    /**
+     * @return true if the record has an entry in the index: a reference or a mail, any other row is a damaged line
+     */
+    static boolean isIndexed(String[] record) {
+        return isReference(record) || record.length >= 6;
+    }
+
+    /**
+     * @param record a CSV line of the segment, rows of the old format have the date only as a string
+     */
+    static Email toEmail(String[] record) {
+        long timestamp = record.length > 6 ? Long.parseLong(record[6]) : toEpochMillis(record[3]);
+        return new Email(record[0].split(" "), record[1], record[2], record[3], record[4], parseID(record[5]), timestamp);
+    }
+
+    /**
+     * convert from date as string to Epoch in milliseconds, done only once when the mail is saved
+     */
+    static long toEpochMillis(String date) {
+        try {
+            return LocalDateTime.parse(date, dtf).atZone(zone).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return 0; //a malformed date is sent only with the first synchronization
+        }
+    }
+
+    private static long parseID(String ID) {
+        try {
+            return Long.parseLong(ID);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * in memory copy of the index and of the tombstones of a mailbox, every access must hold the lock of the user in MailboxLocks
+     */
+    private static class Segment {
+        final Path index, tombstones;
+        volatile Path data; //plain or compressed, the format can change when the segment is rewritten
+        DeflateBlocks blocks = null; //only for the compressed segments
+        long[] ids = new long[16], timestamps = new long[16], offsets = new long[16], seqs = new long[16];
+        TimeIndex times = new TimeIndex();
+        int size = 0;
+        long length = 0; //bytes of the segment covered by the index
+        HashMap<Long, Integer> positions = new HashMap<>(); //position of every mail in the segment, by ID
+        HashSet<Long> deleted = new HashSet<>();
+        HashSet<Long> ghosts = new HashSet<>(); //deleted mails removed by a rewrite, a replayed send must not write them again
+        long ghostsUntil = 0; //the ghosts can be forgotten once this file of the log is deleted
+        long lastSeq = 0; //sequence number of the last mail added, increasing also when the mails are deleted
+        long token = 0; //random, changes when the index is built again from the segment and the sequence numbers restart
+        long[] tombstoned = new long[16]; //IDs in the tombstones file, in the order they were deleted
+        int tombstonedSize = 0;
+        long deleteBase = 0; //deletes forgotten by the rewrites, before the first one in the tombstones file
+        volatile MappedByteBuffer mapping = null; //only for the segments bigger than mmapThreshold, replaced by the readers
+
+        Segment(Path data, Path index, Path tombstones) {
+            this.data = data;
+            this.index = index;
+            this.tombstones = tombstones;
+        }
+
+        /**
+         * @return where the record at the given position ends
+         */
+        long end(int position) {
+            return position + 1 < size ? offsets[position + 1] : length;
+        }
+
+        boolean contains(long id) {
+            return positions.containsKey(id) || ghosts.contains(id);
+        }
+
+        double deadRatio() {
+            return size == 0 ? 0 : (double) deleted.size() / size;
+        }
+
+        /**
+         * adds a mail just written, with the next sequence number
+         */
+        void add(long id, long timestamp, long offset) {
+            add(id, timestamp, offset, lastSeq + 1);
+        }
+
+        void add(long id, long timestamp, long offset, long seq) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+                seqs = Arrays.copyOf(seqs, size * 2);
+            }
+            ids[size] = id;
+            timestamps[size] = timestamp;
+            offsets[size] = offset;
+            seqs[size] = seq;
+            lastSeq = Math.max(lastSeq, seq);
+            times.add(timestamp, size);
+            positions.put(id, size);
+            size++;
+        }
+
+        /**
+         * a mail was added to the tombstones file
+         */
+        void tombstoned(long id) {
+            if (tombstonedSize == tombstoned.length)
+                tombstoned = Arrays.copyOf(tombstoned, tombstonedSize * 2);
+            tombstoned[tombstonedSize++] = id;
+        }
+
+        /**
+         * @return how many deletes the mailbox had, the sequence number of the last one
+         */
+        long deletes() {
+            return deleteBase + tombstonedSize;
+        }
+
+        /**
+         * @return the position of the first mail with a sequence number greater than seq, they grow with the position
+         */
+        int firstAfter(long seq) {
+            int low = 0, high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (seqs[middle] <= seq)
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            return low;
+        }
+
+        /**
+         * replaces the index with the one of a rewritten segment, the old mapping refers to the replaced file so it's dropped
+         */
+        void copyFrom(Segment other) {
+            mapping = null;
+            ids = other.ids;
+            timestamps = other.timestamps;
+            times = other.times;
+            offsets = other.offsets;
+            seqs = other.seqs;
+            size = other.size;
+            length = other.length;
+            positions = other.positions;
+            deleted = other.deleted;
+            ghosts = other.ghosts;
+            ghostsUntil = other.ghostsUntil;
+            lastSeq = other.lastSeq;
+            token = other.token;
+            tombstoned = other.tombstoned;
+            tombstonedSize = other.tombstonedSize;
+            deleteBase = other.deleteBase;
+        }
+
+        /**
+         * writes on disk the entries starting from the given one, the header is written last so a crash
+         * in the middle leaves an index that simply covers less of the segment
+         */
+        void saveIndex(int from) throws IOException {
+            ByteBuffer entries = ByteBuffer.allocate((size - from) * ENTRY_SIZE);
+            for (int i = from; i < size; i++)
+                entries.putLong(ids[i]).putLong(timestamps[i]).putLong(offsets[i]).putLong(seqs[i]);
+            entries.flip();
+            try (FileChannel channel = FileChannel.open(index, CREATE, WRITE)) {
+                if (from == 0)
+                    channel.truncate(0);
+                writeAt(channel, entries, HEADER_SIZE + (long) from * ENTRY_SIZE);
+                writeAt(channel, ByteBuffer.allocate(HEADER_SIZE).putInt(INDEX_MAGIC).putInt(INDEX_VERSION).putLong(length)
+                        .putLong(lastSeq).putLong(token).flip(), 0);
+            }
+        }
+
+        private static void writeAt(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+        }
+    }
+}
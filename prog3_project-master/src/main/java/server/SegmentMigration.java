@@ -0,0 +1,105 @@
+package server;
+
+import com.opencsv.CSVReader;
+import com.opencsv.exceptions.CsvException;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * converts the mailboxes of every user to the format chosen in the configuration (compressedBlockSize), then prints
+ * the compression ratio and how fast the converted segments are decoded. Must be run with the server stopped:
+ * java -cp target/classes:... server.SegmentMigration [configuration file] [block size, 0 for plain CSV]
+ */
+public class SegmentMigration {
+
+    public static void main(String[] args) throws IOException {
+        String configPath = args.length > 0 ? args[0] : "data/configuration.csv";
+        String usersPath = "data/login.csv", usersDir = "data";
+        List<String> dataRoots = new ArrayList<>();
+        int blockSize = 0;
+        long mmapThreshold = 16L * 1024 * 1024;
+        try (CSVReader reader = new CSVReader(new FileReader(configPath))) {
+            for (String[] line : reader.readAll()) {
+                switch (line[0]) {
+                    case "users":
+                        usersPath = line[1];
+                        break;
+                    case "usersDir":
+                        usersDir = line[1];
+                        break;
+                    case "dataRoots":
+                        dataRoots.addAll(Arrays.asList(line).subList(1, line.length));
+                        break;
+                    case "compressedBlockSize":
+                        blockSize = Integer.parseInt(line[1]);
+                        break;
+                    case "mmapThreshold":
+                        mmapThreshold = Long.parseLong(line[1]);
+                        break;
+                }
+            }
+        } catch (CsvException e) {
+            throw new IOException(e.getMessage());
+        }
+        if (args.length > 1)
+            blockSize = Integer.parseInt(args[1]);
+        if (dataRoots.isEmpty())
+            dataRoots.add(usersDir);
+        MailboxPaths paths = new MailboxPaths(dataRoots, usersDir);
+
+        List<String> usernames = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(usersPath))) {
+            in.lines().forEach(line -> usernames.add(line.split(",")[0].trim()));
+        }
+        usernames.add(ContentStore.CONTENT);
+
+        //compaction never triggers during the conversion, every mailbox is rewritten anyway.
+        //The operations left in the write-ahead log by the server are applied before converting
+        SegmentMailboxStore store = new SegmentMailboxStore(paths, 1, mmapThreshold, WriteAheadLog.Durability.NONE, 1000, blockSize,
+                64L * 1024 * 1024);
+        System.out.println("converting the mailboxes in " + String.join(", ", dataRoots) + (blockSize > 0 ? " to blocks of " + blockSize + " bytes" : " to plain CSV"));
+        long totalBefore = 0, totalAfter = 0, totalDecoded = 0, totalNanos = 0;
+        for (String username : usernames) {
+            paths.relocate(username);
+            long before = fileSize(paths, username);
+            if (!store.convert(username))
+                continue;
+            long after = fileSize(paths, username);
+            long start = System.nanoTime();
+            long decoded = store.decodeAll(username);
+            long nanos = System.nanoTime() - start;
+            System.out.printf("%-30s %10d -> %10d bytes, ratio %.2f, decoded %.1f MB/s%n", username, before, after,
+                    ratio(decoded, after), throughput(decoded, nanos));
+            totalBefore += before;
+            totalAfter += after;
+            totalDecoded += decoded;
+            totalNanos += nanos;
+        }
+        System.out.printf("%-30s %10d -> %10d bytes, ratio %.2f, decoded %.1f MB/s%n", "total", totalBefore, totalAfter,
+                ratio(totalDecoded, totalAfter), throughput(totalDecoded, totalNanos));
+        store.close();
+    }
+
+    /**
+     * @return size on disk of the segment of the user, in whatever format it is
+     */
+    private static long fileSize(MailboxPaths paths, String username) throws IOException {
+        Path data = paths.resolve(username, ".csv"), compressed = paths.resolve(username, ".csz");
+        return (Files.exists(data) ? Files.size(data) : 0) + (Files.exists(compressed) ? Files.size(compressed) : 0);
+    }
+
+    private static double ratio(long decoded, long stored) {
+        return stored == 0 ? 0 : (double) decoded / stored;
+    }
+
+    private static double throughput(long bytes, long nanos) {
+        return nanos == 0 ? 0 : bytes / 1024.0 / 1024.0 / (nanos / 1e9);
+    }
+}
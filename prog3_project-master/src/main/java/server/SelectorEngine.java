@@ -0,0 +1,566 @@
+package server;
+
+import shared.FrameCompression;
+import shared.FrameStream;
+import shared.Message;
+import shared.WireCodec;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * server engine that doesn't keep a thread for every client: the connections are spread over a few event loops,
+ * each one waits on a Selector for the sockets ready to be read or written and never blocks on any of them.
+ * Same protocol of FrameStream, the frames are read and written a piece at a time as the bytes arrive or the socket
+ * has room; decoding, executing the request and encoding the response are done by the workers, so a slow mailbox
+ * doesn't stop the other connections of the loop.
+ * Every second each loop drops its clients idle for readTimeout, or with frames not read for writeTimeout.
+ * A client reading slowly enough to never hit writeTimeout keeps at most Model.MAX_QUEUED_PUSHES pushes queued,
+ * then they are replaced by a hint as in the blocking engine.
+ * Chosen in the configuration with engine,nio (the default is engine,blocking, a thread per connection)
+ */
+class SelectorEngine implements Runnable {
+    private static final int READ_BUFFER = 64 * 1024; //shared by the connections of a loop, only partial frames are kept apart
+    private static final long CHECK_INTERVAL = 1000; //milliseconds between the checks of the timeouts
+
+    private final Model model;
+    private final WorkQueue workers;
+    private final int readTimeout;
+    private final long writeTimeout;
+    private final Collection<WireCodec> codecs;
+    private final ServerSocketChannel server;
+    private final EventLoop[] loops;
+    private final AtomicLong connections = new AtomicLong(), accepted = new AtomicLong();
+    private final AtomicLong framesIn = new AtomicLong(), framesOut = new AtomicLong(), droppedPushes = new AtomicLong();
+    private volatile boolean closed = false;
+
+    /**
+     * @param model   executes the requests
+     * @param port    port the server listens on
+     * @param threads number of event loops
+     * @param workers      executes the requests of all the connections
+     * @param codecs       codecs accepted from the clients
+     * @param readTimeout  milliseconds without requests after which a client is dropped, 0 never
+     * @param writeTimeout milliseconds a frame can wait to be read by the client before it's dropped, 0 never
+     */
+    SelectorEngine(Model model, int port, int threads, WorkQueue workers, Collection<WireCodec> codecs, int readTimeout,
+                   long writeTimeout) throws IOException {
+        this.model = model;
+        this.workers = workers;
+        this.codecs = codecs;
+        this.readTimeout = readTimeout;
+        this.writeTimeout = writeTimeout;
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), 1024);
+        loops = new EventLoop[Math.max(threads, 1)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * accepts the connections and gives them to the loops in turn, the accept is the only blocking call
+     */
+    @Override
+    public void run() {
+        long next = 0;
+        while (!closed) {
+            try {
+                SocketChannel channel = server.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                accepted.incrementAndGet();
+                loops[(int) (next++ % loops.length)].register(channel, model.tooManyConnections(connections.get()));
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    void close() {
+        closed = true;
+        try {
+            server.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+        for (EventLoop loop : loops)
+            loop.close();
+    }
+
+    String stats() {
+        return "nio engine: " + loops.length + " event loops, " + connections.get() + " connections open, " + accepted.get()
+                + " accepted, " + framesIn.get() + " frames read, " + framesOut.get() + " frames written, " + droppedPushes.get()
+                + " push queues overflowed";
+    }
+
+    /**
+     * a thread with its Selector, the connections are only touched by it: the other threads hand it tasks
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER);
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * @param refused the client is answered busy when it authenticates
+         */
+        void register(SocketChannel channel, boolean refused) {
+            execute(() -> {
+                try {
+                    Client client = new Client(channel, this, refused);
+                    client.key = channel.register(selector, SelectionKey.OP_READ, client);
+                    connections.incrementAndGet();
+                } catch (IOException e) {
+                    System.err.println("cannot register connection: " + e.getMessage());
+                }
+            });
+        }
+
+        /**
+         * runs a task on the loop thread, the selector is woken up to run it
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void close() {
+            execute(() -> {
+                for (SelectionKey key : selector.keys())
+                    ((Client) key.attachment()).close();
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            try {
+                long lastCheck = System.currentTimeMillis();
+                while (selector.isOpen()) {
+                    selector.select(CHECK_INTERVAL);
+                    for (Runnable task = tasks.poll(); task != null; task = tasks.poll())
+                        task.run();
+                    if (!selector.isOpen())
+                        return;
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Client client = (Client) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable())
+                                client.read();
+                            if (key.isValid() && key.isWritable())
+                                client.flush();
+                        } catch (IOException e) {
+                            //the client closed the connection or sent something that isn't the protocol
+                            client.close();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                    long now = System.currentTimeMillis();
+                    if (now - lastCheck >= CHECK_INTERVAL) {
+                        lastCheck = now;
+                        dropExpired(now);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (!closed)
+                    e.printStackTrace();
+            }
+        }
+
+        /**
+         * closes the clients that are idle or don't read their frames
+         */
+        private void dropExpired(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Client client = (Client) key.attachment();
+                String reason = client.expired(now);
+                if (reason != null) {
+                    model.timedOut(client.username, client.address, reason);
+                    client.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * state of a connection: the bytes of an incomplete frame, the frames waiting to be written and the user once authenticated
+     */
+    private class Client {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final String address;
+        private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        private final Set<ByteBuffer> pushes = Collections.newSetFromMap(new IdentityHashMap<>()); //frames of output pushed
+        private SelectionKey key;
+        private ByteBuffer partial = null; //start of a frame, null if none was left incomplete
+        private WireCodec codec = null; //null until the handshake is done
+        private byte version; //newest version of the binary codec the client decodes, set by the handshake
+        private FrameCompression compression = null; //set by the handshake if client and server compress the frames
+        private volatile String username = null; //set by the worker that authenticates the user
+        private volatile String token = null; //of the session, set with the user
+        private boolean authenticating = false, closing = false;
+        private final boolean refused; //too many connections, the authentication is answered busy
+        private long lastRead = System.currentTimeMillis();
+        private long stalledSince = 0; //since when the frames waiting to be written don't move, 0 if there are none
+        private final Consumer<Message> push = message -> queue(message, false, true); //the messages pushed by the server, with no request
+
+        Client(SocketChannel channel, EventLoop loop, boolean refused) throws IOException {
+            this.channel = channel;
+            this.loop = loop;
+            this.refused = refused;
+            this.address = String.valueOf(channel.getRemoteAddress());
+        }
+
+        /**
+         * reads what arrived and handles the complete frames, what's left of an incomplete one is kept for the next read
+         */
+        void read() throws IOException {
+            ByteBuffer in = partial != null ? partial : loop.buffer;
+            if (partial == null)
+                in.clear();
+            else if (!in.hasRemaining())
+                partial = in = grow(in);
+            int read = channel.read(in);
+            if (read < 0) {
+                close();
+                return;
+            }
+            lastRead = System.currentTimeMillis();
+            in.flip();
+            while (!closing && handle(in))
+                ;
+            if (closing || !in.hasRemaining()) {
+                partial = null;
+                return;
+            }
+            //a frame is kept whole in its own buffer, grown as its bytes arrive: a peer announcing a big frame and
+            //sending nothing costs no memory
+            ByteBuffer rest = ByteBuffer.allocate(Math.max(Math.min(needed(in), in.remaining() + READ_BUFFER), in.remaining()));
+            rest.put(in);
+            partial = rest;
+        }
+
+        /**
+         * @param full the buffer of a partial frame, filled by the bytes arrived
+         * @return a buffer with the same bytes, twice as big or as big as the frame
+         */
+        private ByteBuffer grow(ByteBuffer full) {
+            full.flip();
+            ByteBuffer grown = ByteBuffer.allocate((int) Math.min(needed(full), 2L * full.capacity()));
+            grown.put(full);
+            return grown;
+        }
+
+        /**
+         * @return how many bytes the next handshake or frame takes, as far as it can be known from what arrived
+         */
+        private int needed(ByteBuffer in) {
+            if (codec == null)
+                return Integer.BYTES + 1 + (in.remaining() > Integer.BYTES ? in.get(in.position() + Integer.BYTES) & 0xff : 0);
+            return in.remaining() >= Integer.BYTES ? Integer.BYTES + (in.getInt(in.position()) & ~FrameCompression.COMPRESSED) : Integer.BYTES;
+        }
+
+        /**
+         * handles the handshake or a frame at the start of the buffer
+         *
+         * @return false if the buffer doesn't contain it whole yet
+         */
+        private boolean handle(ByteBuffer in) throws IOException {
+            if (codec == null)
+                return handshake(in);
+            if (in.remaining() < Integer.BYTES)
+                return false;
+            int length = in.getInt(in.position());
+            boolean compressed = compression != null && (length & FrameCompression.COMPRESSED) != 0;
+            if (compressed)
+                length &= ~FrameCompression.COMPRESSED;
+            //before the authentication only the credentials can arrive, a bigger frame is refused before reading it
+            if (length < 0 || length > maxLength())
+                throw new IOException("frame too big: " + length + " bytes");
+            if (in.remaining() < Integer.BYTES + length)
+                return false;
+            in.position(in.position() + Integer.BYTES);
+            byte[] frame = new byte[length];
+            in.get(frame);
+            framesIn.incrementAndGet();
+            if (username == null)
+                authenticate(frame, compressed);
+            else
+                workers.execute(() -> execute(frame, compressed), () -> busy(frame, compressed, false));
+            return true;
+        }
+
+        /**
+         * the same handshake of FrameStream.accept: MAGIC, the codecs of the client and maybe the offers of compression and
+         * binary version, the server answers with the codec chosen, if it compresses and the version
+         */
+        private boolean handshake(ByteBuffer in) throws IOException {
+            if (in.remaining() < Integer.BYTES + 1)
+                return false;
+            int count = in.get(in.position() + Integer.BYTES) & 0xff;
+            if (in.remaining() < Integer.BYTES + 1 + count)
+                return false;
+            if (in.getInt() != FrameStream.MAGIC)
+                throw new IOException("not a client of the mail server");
+            in.get();
+            WireCodec chosen = null;
+            boolean offered = false;
+            byte offeredVersion = 0;
+            for (int i = 0; i < count; i++) {
+                byte id = in.get();
+                WireCodec codec = WireCodec.of(id);
+                if (chosen == null && codec != null && codecs.contains(codec))
+                    chosen = codec;
+                offered |= id == FrameCompression.OFFER;
+                offeredVersion = (byte) Math.max(offeredVersion, FrameStream.offeredVersion(id));
+            }
+            if (chosen == null) {
+                write(ByteBuffer.wrap(new byte[]{0}));
+                closeAfterWrite();
+                return false;
+            }
+            if (offered)
+                compression = model.newCompression();
+            write(ByteBuffer.wrap(FrameStream.answer(chosen, compression != null, offeredVersion)));
+            version = FrameStream.agreed(offeredVersion);
+            codec = chosen;
+            return true;
+        }
+
+        /**
+         * the first frame must authenticate the user, it's checked by a worker since it may create the mailbox.
+         * The client waits for the answer before sending anything else, a request arriving meanwhile is refused
+         */
+        private void authenticate(byte[] frame, boolean compressed) {
+            if (authenticating) {
+                closeAfterWrite();
+                return;
+            }
+            authenticating = true;
+            workers.execute(() -> {
+                Message request;
+                try {
+                    request = decode(frame, compressed);
+                } catch (IOException e) {
+                    loop.execute(this::close);
+                    return;
+                }
+                if (refused)
+                    model.refused(address);
+                Message response = refused ? model.busy() : model.authenticate(request, address);
+                if (!response.isError()) {
+                    token = SessionTokens.tokenOf(response);
+                    username = request.getUser();
+                }
+                respond(request, response, response.isError());
+                loop.execute(() -> authenticating = false);
+            }, () -> busy(frame, compressed, true));
+        }
+
+        /**
+         * answers busy to a request the workers can't take, it's decoded only to answer with its ID.
+         * Run by the thread that queued the request or by the one that took its place, the loop included
+         *
+         * @param last the connection is closed after the answer
+         */
+        private void busy(byte[] frame, boolean compressed, boolean last) {
+            try {
+                respond(decode(frame, compressed), model.busy(), last);
+            } catch (IOException e) {
+                loop.execute(this::close);
+            }
+        }
+
+        /**
+         * run by a worker: decodes the request, executes it and queues the response
+         */
+        private void execute(byte[] frame, boolean compressed) {
+            Message request;
+            try {
+                request = decode(frame, compressed);
+            } catch (IOException e) {
+                System.err.println(address + ": " + e.getMessage());
+                loop.execute(this::close);
+                return;
+            }
+            respond(request, model.execute(token, request, push), false);
+        }
+
+        /**
+         * run by a worker, the frame is inflated here and not by the loop
+         */
+        private Message decode(byte[] frame, boolean compressed) throws IOException {
+            ByteBuffer bytes = ByteBuffer.wrap(frame);
+            return codec.decode(compressed ? compression.inflate(bytes, maxLength()) : bytes);
+        }
+
+        private int maxLength() {
+            return username == null ? FrameStream.MAX_LOGIN_FRAME : FrameStream.MAX_FRAME;
+        }
+
+        /**
+         * run by a worker: tags the response with the ID of the request and queues it
+         */
+        private void respond(Message request, Message response, boolean last) {
+            response.setRequestId(request.getRequestId());
+            queue(response, last, false);
+        }
+
+        /**
+         * encodes and compresses a message on the calling thread and hands it to the loop to be written
+         *
+         * @param last   the connection is closed after writing it
+         * @param pushed a message pushed by the server, dropped if too many are waiting
+         */
+        private void queue(Message message, boolean last, boolean pushed) {
+            ByteBuffer frame = frameOf(message);
+            if (frame == null)
+                return;
+            loop.execute(() -> {
+                if (!channel.isOpen())
+                    return;
+                if (pushed)
+                    push(frame);
+                else
+                    write(frame);
+                if (last)
+                    closeAfterWrite();
+            });
+        }
+
+        /**
+         * @return the message encoded and maybe compressed, with its length; null if it can't be encoded
+         */
+        private ByteBuffer frameOf(Message message) {
+            byte[] encoded;
+            try {
+                encoded = codec.encode(message, version);
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                return null;
+            }
+            return compression != null ? compression.frame(encoded)
+                    : ByteBuffer.allocate(Integer.BYTES + encoded.length).putInt(encoded.length).put(encoded).flip();
+        }
+
+        /**
+         * run by the loop: when MAX_QUEUED_PUSHES are waiting the ones not started yet are replaced by a hint,
+         * the client asks the mails it missed with an update
+         */
+        private void push(ByteBuffer frame) {
+            if (pushes.size() >= Model.MAX_QUEUED_PUSHES) {
+                ByteBuffer head = output.peek(); //maybe written in part, it has to be finished
+                output.removeIf(queued -> queued != head && pushes.remove(queued));
+                droppedPushes.incrementAndGet();
+                frame = frameOf(new Message(Subscriptions.HINT));
+                if (frame == null)
+                    return;
+            }
+            pushes.add(frame);
+            write(frame);
+        }
+
+        /**
+         * run by the loop: the frame is written at once if the socket has room, otherwise when the selector says so
+         */
+        private void write(ByteBuffer frame) {
+            output.add(frame);
+            framesOut.incrementAndGet();
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void flush() throws IOException {
+            boolean moved = false;
+            while (!output.isEmpty()) {
+                ByteBuffer head = output.peek();
+                moved |= channel.write(head) > 0;
+                if (head.hasRemaining())
+                    break;
+                pushes.remove(output.poll());
+            }
+            stalledSince = output.isEmpty() ? 0 : moved || stalledSince == 0 ? System.currentTimeMillis() : stalledSince;
+            if (!output.isEmpty()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closing)
+                    close();
+            }
+        }
+
+        /**
+         * stops reading, the connection is closed as soon as the queued frames are written
+         */
+        private void closeAfterWrite() {
+            closing = true;
+            if (output.isEmpty())
+                close();
+            else if (key.isValid())
+                key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * run by the loop
+         *
+         * @return why the client has to be dropped, null if it's alive
+         */
+        String expired(long now) {
+            if (writeTimeout > 0 && stalledSince != 0 && now - stalledSince > writeTimeout)
+                return "a response wasn't read in " + writeTimeout + " ms";
+            if (readTimeout > 0 && output.isEmpty() && now - lastRead > readTimeout)
+                return "nothing received in " + readTimeout + " ms";
+            return null;
+        }
+
+        void close() {
+            if (!channel.isOpen())
+                return;
+            if (key != null)
+                key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+            output.clear();
+            partial = null;
+            connections.decrementAndGet();
+            if (username != null)
+                model.unsubscribe(username, push);
+            model.connectionClosed(username, address, compression);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package server;
+
+import shared.Message;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * the sessions opened with auth: each one gets a random token, sent to the client with how long it lasts unused.
+ * The engines execute the requests of a connection with its token, looked up here without locks, and a client that
+ * connects again sends the token (action resume) instead of its credentials.
+ * A token not used for ttl milliseconds is not valid anymore, expire removes them from the table.
+ * The session also remembers if the client lists the mails with headers only, asked at auth and kept when resumed
+ */
+class SessionTokens {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int TOKEN_BYTES = 16;
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final long ttl;
+    private final AtomicLong issued = new AtomicLong(), resumed = new AtomicLong(), expired = new AtomicLong();
+
+    /**
+     * @param ttl milliseconds after which an unused token expires
+     */
+    SessionTokens(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * @param headers true if the client wants the mails listed without their body
+     * @return a new token for a user that sent the right credentials
+     */
+    String issue(String username, boolean headers) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        char[] token = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            token[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            token[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        String issuedToken = new String(token);
+        sessions.put(issuedToken, new Session(username, headers));
+        issued.incrementAndGet();
+        return issuedToken;
+    }
+
+    /**
+     * @return the session, null if the token is unknown or expired. The token is used, it lasts ttl more
+     */
+    Session session(String token) {
+        Session session = token == null ? null : sessions.get(token);
+        if (session == null)
+            return null;
+        long now = System.currentTimeMillis();
+        if (now - session.lastUsed > ttl) {
+            if (sessions.remove(token, session))
+                expired.incrementAndGet();
+            return null;
+        }
+        session.lastUsed = now;
+        return session;
+    }
+
+    /**
+     * @return the user of the session, null if the token is unknown or expired
+     */
+    String username(String token) {
+        Session session = session(token);
+        return session == null ? null : session.username;
+    }
+
+    /**
+     * @return the user of the session if the token is still valid and belongs to it, null otherwise
+     */
+    String resume(String username, String token) {
+        String owner = username(token);
+        if (owner == null || !owner.equals(username))
+            return null;
+        resumed.incrementAndGet();
+        return owner;
+    }
+
+    /**
+     * removes the tokens unused for ttl, run periodically
+     */
+    void expire() {
+        long now = System.currentTimeMillis();
+        sessions.forEach((token, session) -> {
+            if (now - session.lastUsed > ttl && sessions.remove(token, session))
+                expired.incrementAndGet();
+        });
+    }
+
+    /**
+     * @return the answer to auth or resume: the token and its ttl in the argument, separated by a comma
+     */
+    Message authenticated(String token) {
+        Message response = new Message("Authenticated");
+        response.setArgument(token + "," + ttl);
+        return response;
+    }
+
+    /**
+     * @param authenticated the answer of authenticated
+     */
+    static String tokenOf(Message authenticated) {
+        String argument = authenticated.getArgument();
+        return argument.substring(0, argument.indexOf(','));
+    }
+
+    String stats() {
+        return "sessions: " + sessions.size() + " tokens valid, " + issued.get() + " issued, " + resumed.get() + " resumed, "
+                + expired.get() + " expired";
+    }
+
+    static class Session {
+        final String username;
+        final boolean headers; //the listings have the mails without body, see Email.header
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Session(String username, boolean headers) {
+            this.username = username;
+            this.headers = headers;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package server;
+
+import shared.Email;
+import shared.Message;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * the sessions that asked to be told of the new mails of their user (action subscribe), instead of polling with update.
+ * When a mail is saved it's pushed to every session of its receivers, as a Message with request ID 0 that the client
+ * didn't ask for: the whole mail if it's small, otherwise only a hint and the client asks for it with an update
+ */
+class Subscriptions {
+    static final String NEW_MAIL = "new mail", HINT = "new mails to update";
+
+    private final ConcurrentHashMap<String, Set<Consumer<Message>>> sessions = new ConcurrentHashMap<>();
+    private final long maxPushSize;
+    private final AtomicLong mails = new AtomicLong(), hints = new AtomicLong();
+
+    /**
+     * @param maxPushSize characters of subject and body above which only a hint is pushed
+     */
+    Subscriptions(long maxPushSize) {
+        this.maxPushSize = maxPushSize;
+    }
+
+    /**
+     * @param session queues a message for the connection of the session, it must not write it: it's called by the
+     *                worker that saved the mail, a client not reading would block the sender
+     */
+    void subscribe(String username, Consumer<Message> session) {
+        sessions.computeIfAbsent(username, user -> new CopyOnWriteArraySet<>()).add(session);
+    }
+
+    /**
+     * called when the connection of the session is closed
+     */
+    void unsubscribe(String username, Consumer<Message> session) {
+        sessions.computeIfPresent(username, (user, subscribed) -> {
+            subscribed.remove(session);
+            return subscribed.isEmpty() ? null : subscribed;
+        });
+    }
+
+    /**
+     * pushes a mail just saved to the sessions of its receivers
+     */
+    void deliver(Collection<String> receivers, Email mail) {
+        Message push = null;
+        for (String receiver : receivers) {
+            Set<Consumer<Message>> subscribed = sessions.get(receiver);
+            if (subscribed == null)
+                continue;
+            if (push == null) //built once, the same message goes to every receiver
+                push = toPush(mail);
+            for (Consumer<Message> session : subscribed) {
+                session.accept(push);
+                (push.getEmails().length == 0 ? hints : mails).incrementAndGet();
+            }
+        }
+    }
+
+    private Message toPush(Email mail) {
+        if (mail.getSubject().length() + mail.getBody().length() > maxPushSize) {
+            Message hint = new Message(HINT);
+            hint.setArgument(String.valueOf(mail.getID()));
+            return hint;
+        }
+        return new Message(NEW_MAIL, new Email[]{mail});
+    }
+
+    String stats() {
+        return "push: " + sessions.values().stream().mapToInt(Set::size).sum() + " sessions subscribed, " + mails.get()
+                + " mails and " + hints.get() + " hints pushed";
+    }
+}
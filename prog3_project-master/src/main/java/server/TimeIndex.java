@@ -0,0 +1,65 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * dates of the mails of a mailbox, sorted in ascending order together with the position of each mail in the mailbox.
+ * The mails received since a given time are found with a binary search, without looking at the other ones.
+ * Not thread safe, the owner of the index has to synchronize the accesses
+ */
+class TimeIndex {
+    private long[] times = new long[16];
+    private int[] positions = new int[16];
+    private int size = 0;
+
+    /**
+     * @param time     UnixTimestamp of the mail in milliseconds
+     * @param position position of the mail in the mailbox
+     */
+    void add(long time, int position) {
+        if (size == times.length) {
+            times = Arrays.copyOf(times, size * 2);
+            positions = Arrays.copyOf(positions, size * 2);
+        }
+        //mails usually arrive in chronological order, so the new one is almost always inserted at the end
+        int i = size;
+        while (i > 0 && times[i - 1] > time) {
+            times[i] = times[i - 1];
+            positions[i] = positions[i - 1];
+            i--;
+        }
+        times[i] = time;
+        positions[i] = position;
+        size++;
+    }
+
+    /**
+     * @param from UnixTimestamp in milliseconds
+     * @return the positions of the mails with a time greater or equal to from, in ascending order
+     */
+    int[] since(long from) {
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < from)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        int[] result = Arrays.copyOfRange(positions, low, size);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * @param from UnixTimestamp in milliseconds
+     * @return true if there is at least a mail with a time greater or equal to from, looking only at the newest one
+     */
+    boolean hasSince(long from) {
+        return size > 0 && times[size - 1] >= from;
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
@@ -0,0 +1,111 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * the workers executing the requests of all the sessions, with a bounded queue: when the requests arrive faster than
+ * they are executed the queue stops growing and the overload policy chooses which request is not executed.
+ * REJECT refuses the new one, SHED_OLDEST drops the one waiting for the longest time, likely the client already gave up.
+ * A request not executed is answered at once that the server is busy (see Model.busy), so the client retries later
+ * instead of waiting for a response that would come too late
+ */
+class WorkQueue {
+    enum Overload {REJECT, SHED_OLDEST}
+
+    private final ThreadPoolExecutor executor;
+    private final ArrayBlockingQueue<Runnable> queue;
+    private final AtomicLong executed = new AtomicLong(), rejected = new AtomicLong(), shed = new AtomicLong();
+    private final AtomicLong waitedNanos = new AtomicLong(), maxWaitNanos = new AtomicLong();
+
+    /**
+     * @param threads  number of workers
+     * @param capacity requests that can wait for a worker
+     * @param overload what to do when the queue is full
+     */
+    WorkQueue(int threads, int capacity, Overload overload) {
+        queue = new ArrayBlockingQueue<>(Math.max(capacity, 1));
+        RejectedExecutionHandler handler = overload == Overload.REJECT ? (work, pool) -> refuse(work, rejected) : this::shedOldest;
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue, handler);
+    }
+
+    /**
+     * queues a request, if it's refused or dropped later its rejection is run instead: by the thread calling this,
+     * or by the one that queues the request taking its place. Both must be quick, they only answer the client
+     *
+     * @param task      executes the request and writes the response
+     * @param rejection answers the client that the server is busy
+     */
+    void execute(Runnable task, Runnable rejection) {
+        executor.execute(new Work(task, rejection));
+    }
+
+    private void shedOldest(Runnable work, ThreadPoolExecutor pool) {
+        if (pool.isShutdown()) {
+            refuse(work, rejected);
+            return;
+        }
+        Runnable oldest = queue.poll();
+        if (oldest != null)
+            refuse(oldest, shed);
+        //another thread can take the place meanwhile, then the new request is refused too
+        if (!queue.offer(work))
+            refuse(work, rejected);
+    }
+
+    private void refuse(Runnable work, AtomicLong counter) {
+        counter.incrementAndGet();
+        ((Work) work).rejection.run();
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    void shutdownNow() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return requests waiting for a worker
+     */
+    int depth() {
+        return queue.size();
+    }
+
+    String stats() {
+        long count = executed.get();
+        return String.format("workers: %d requests waiting (%d max), %d executed, %d rejected, %d shed, waited %.1f ms on average and %.1f ms at most",
+                queue.size(), queue.size() + queue.remainingCapacity(), count, rejected.get(), shed.get(),
+                count == 0 ? 0.0 : waitedNanos.get() / 1e6 / count, maxWaitNanos.get() / 1e6);
+    }
+
+    /**
+     * a request in the queue, remembers when it was queued to measure how long it waited
+     */
+    private class Work implements Runnable {
+        private final Runnable task, rejection;
+        private final long queued = System.nanoTime();
+
+        Work(Runnable task, Runnable rejection) {
+            this.task = task;
+            this.rejection = rejection;
+        }
+
+        @Override
+        public void run() {
+            long waited = System.nanoTime() - queued;
+            executed.incrementAndGet();
+            waitedNanos.addAndGet(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+            task.run();
+        }
+    }
+}
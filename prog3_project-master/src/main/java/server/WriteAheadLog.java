@@ -0,0 +1,339 @@
+package server;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * every change of the mailboxes (a mail sent, some mails deleted) is first appended here, in a single sequential file,
+ * and applied to the segments later. A send returns as soon as its operation is in the log, after a crash the
+ * operations not applied yet are replayed when the server starts.
+ * The log is split in files of fileSize bytes (data root/wal/number.wal), a file is deleted when all its operations
+ * are applied and the segments they changed are synced. Operations are written by a single thread, together with the
+ * ones queued meanwhile; how often the log is synced depends on the Durability chosen
+ */
+class WriteAheadLog implements Runnable {
+    static final byte SEND = 1, DELETE = 2;
+    private static final int HEADER_SIZE = 8; //length and CRC32 of the operation
+    private static final int MAX_BATCH = 1024;
+    private static final Pending STOP = new Pending(null);
+
+    /**
+     * NONE leaves the sync to the operating system, PERIODIC syncs the log every syncInterval milliseconds,
+     * BATCH syncs every batch before telling the connections their operations are saved
+     */
+    enum Durability {NONE, PERIODIC, BATCH}
+
+    private final Path dir;
+    private final SegmentMailboxStore store;
+    private final Durability durability;
+    private final long syncInterval, fileSize;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final ConcurrentSkipListMap<Long, AtomicInteger> unapplied = new ConcurrentSkipListMap<>(); //operations not applied yet, by file
+    private volatile long current; //number of the file being written
+    private volatile FileChannel channel;
+    private volatile boolean unsynced = false;
+    private final AtomicLong batches = new AtomicLong(), operations = new AtomicLong(), bytes = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong(), checkpoints = new AtomicLong();
+
+    /**
+     * @param dir          directory of the log files
+     * @param store        store the operations are applied to
+     * @param durability   when the log is synced on disk
+     * @param syncInterval milliseconds between two syncs (with Durability.PERIODIC) and between two checkpoints
+     * @param fileSize     size after which a new file is started
+     */
+    WriteAheadLog(Path dir, SegmentMailboxStore store, Durability durability, long syncInterval, long fileSize) throws IOException {
+        this.dir = dir;
+        this.store = store;
+        this.durability = durability;
+        this.syncInterval = syncInterval;
+        this.fileSize = fileSize;
+        Files.createDirectories(dir);
+        long last = 0;
+        for (long number : files()) {
+            unapplied.put(number, new AtomicInteger()); //replayed before the log is started
+            last = Math.max(last, number);
+        }
+        current = last + 1;
+        channel = FileChannel.open(file(current), CREATE, WRITE, TRUNCATE_EXISTING);
+        unapplied.put(current, new AtomicInteger());
+    }
+
+    /**
+     * @return the operations left in the log by the last run, in the order they were written.
+     * An incomplete or corrupted operation is a write interrupted by a crash, it's the end of the log
+     */
+    List<ByteBuffer> recover() throws IOException {
+        ArrayList<ByteBuffer> recovered = new ArrayList<>();
+        CRC32 crc = new CRC32();
+        for (long number : unapplied.headMap(current).keySet()) {
+            ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(file(number)));
+            while (log.remaining() >= HEADER_SIZE) {
+                int length = log.getInt(), checksum = log.getInt();
+                if (length < 0 || length > log.remaining())
+                    break;
+                ByteBuffer operation = log.slice();
+                operation.limit(length);
+                crc.reset();
+                crc.update(operation.duplicate());
+                if ((int) crc.getValue() != checksum)
+                    break;
+                recovered.add(operation);
+                log.position(log.position() + length);
+            }
+        }
+        return recovered;
+    }
+
+    /**
+     * queues an operation, the returned future completes when the operation is in the log (and synced, if
+     * Durability.BATCH) with the number of the file containing it, to pass to applied
+     */
+    CompletableFuture<Long> append(byte[] operation) {
+        Pending pending = new Pending(operation);
+        queue.add(pending);
+        return pending.done;
+    }
+
+    /**
+     * an operation of the given file was applied to the segments
+     */
+    void applied(long file) {
+        unapplied.get(file).decrementAndGet();
+    }
+
+    /**
+     * @return the number of the oldest file not deleted yet
+     */
+    long oldest() {
+        return unapplied.firstKey();
+    }
+
+    long current() {
+        return current;
+    }
+
+    void stop() {
+        queue.add(STOP);
+    }
+
+    @Override
+    public void run() {
+        Thread syncer = new Thread(this::checkpointPeriodically, "wal-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+        ArrayList<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            boolean stop = batch.remove(STOP);
+            if (!batch.isEmpty())
+                write(batch);
+            batch.clear();
+            if (stop) {
+                syncer.interrupt();
+                try {
+                    channel.force(false);
+                    channel.close();
+                } catch (IOException e) {
+                    System.err.println("cannot close the write-ahead log: " + e.getMessage());
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * writes a batch of operations with a single write, then starts a new file if the current one is full
+     */
+    private void write(List<Pending> batch) {
+        ByteBuffer[] buffers = new ByteBuffer[batch.size() * 2];
+        CRC32 crc = new CRC32();
+        long size = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            byte[] operation = batch.get(i).operation;
+            crc.reset();
+            crc.update(operation);
+            buffers[2 * i] = ByteBuffer.allocate(HEADER_SIZE).putInt(operation.length).putInt((int) crc.getValue()).flip();
+            buffers[2 * i + 1] = ByteBuffer.wrap(operation);
+            size += HEADER_SIZE + operation.length;
+        }
+        long file = current;
+        try {
+            while (buffers[buffers.length - 1].hasRemaining())
+                channel.write(buffers);
+            if (durability == Durability.BATCH) {
+                channel.force(false);
+                syncs.incrementAndGet();
+            } else {
+                unsynced = true;
+            }
+            unapplied.get(file).addAndGet(batch.size());
+            for (Pending pending : batch)
+                pending.done.complete(file);
+            if (channel.size() >= fileSize)
+                rotate();
+        } catch (IOException e) {
+            for (Pending pending : batch)
+                pending.done.completeExceptionally(e);
+        }
+        batches.incrementAndGet();
+        operations.addAndGet(batch.size());
+        bytes.addAndGet(size);
+    }
+
+    private void rotate() throws IOException {
+        FileChannel full = channel;
+        full.force(false);
+        unapplied.put(current + 1, new AtomicInteger());
+        channel = FileChannel.open(file(current + 1), CREATE, WRITE, TRUNCATE_EXISTING);
+        current++;
+        full.close();
+    }
+
+    /**
+     * syncs the log (with Durability.PERIODIC) and deletes the files whose operations are all applied,
+     * after syncing the segments they changed
+     */
+    private void checkpointPeriodically() {
+        while (true) {
+            try {
+                Thread.sleep(syncInterval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                if (durability == Durability.PERIODIC && unsynced) {
+                    unsynced = false;
+                    channel.force(false);
+                    syncs.incrementAndGet();
+                }
+                checkpoint();
+            } catch (ClosedChannelException e) {
+                //a new file was started meanwhile, the old one was synced before closing it
+            } catch (IOException e) {
+                System.err.println("cannot checkpoint the write-ahead log: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * deletes the old files with no operation left to apply, also called when the server starts after the replay
+     */
+    void checkpoint() throws IOException {
+        ArrayList<Long> done = new ArrayList<>();
+        for (Map.Entry<Long, AtomicInteger> file : unapplied.headMap(current).entrySet()) {
+            if (file.getValue().get() > 0)
+                break; //the files are deleted in order, the later ones are replayed after this one
+            done.add(file.getKey());
+        }
+        if (done.isEmpty())
+            return;
+        store.checkpoint(); //the changes must be on disk before the log describing them is deleted
+        for (long number : done) {
+            Files.deleteIfExists(file(number));
+            unapplied.remove(number);
+        }
+        checkpoints.incrementAndGet();
+    }
+
+    String stats() {
+        long count = Math.max(batches.get(), 1);
+        return "wal: " + durability.toString().toLowerCase() + ", " + operations.get() + " operations, " + bytes.get() / 1024
+                + " KB in " + batches.get() + " batches (avg " + operations.get() / count + "), " + syncs.get() + " syncs, "
+                + checkpoints.get() + " checkpoints, " + unapplied.size() + " files";
+    }
+
+    private Path file(long number) {
+        return dir.resolve(String.format("%010d.wal", number));
+    }
+
+    /**
+     * @return the numbers of the existing files, sorted
+     */
+    private List<Long> files() throws IOException {
+        ArrayList<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.wal")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Long.parseLong(name.substring(0, name.length() - ".wal".length())));
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+
+    /**
+     * @return the operation of a mail sent: ID, UnixTimestamp in milliseconds, receivers and the mail as a CSV line
+     */
+    static byte[] send(long id, long timestamp, Collection<String> usernames, byte[] record) {
+        List<byte[]> names = encode(usernames);
+        int size = 1 + 2 * Long.BYTES + 2 * Integer.BYTES + record.length;
+        for (byte[] name : names)
+            size += Short.BYTES + name.length;
+        ByteBuffer operation = ByteBuffer.allocate(size).put(SEND).putLong(id).putLong(timestamp).putInt(names.size());
+        for (byte[] name : names)
+            operation.putShort((short) name.length).put(name);
+        return operation.putInt(record.length).put(record).array();
+    }
+
+    /**
+     * @return the operation of some mails deleted by a user: username and IDs
+     */
+    static byte[] delete(String username, Collection<Long> ids) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer operation = ByteBuffer.allocate(1 + Short.BYTES + name.length + Integer.BYTES + ids.size() * Long.BYTES)
+                .put(DELETE).putShort((short) name.length).put(name).putInt(ids.size());
+        for (long id : ids)
+            operation.putLong(id);
+        return operation.array();
+    }
+
+    static String readString(ByteBuffer operation) throws BufferUnderflowException {
+        byte[] bytes = new byte[operation.getShort()];
+        operation.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static List<byte[]> encode(Collection<String> strings) {
+        ArrayList<byte[]> encoded = new ArrayList<>();
+        for (String string : strings)
+            encoded.add(string.getBytes(StandardCharsets.UTF_8));
+        return encoded;
+    }
+
+    /**
+     * an operation waiting to be written
+     */
+    private static class Pending {
+        final byte[] operation;
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+
+        Pending(byte[] operation) {
+            this.operation = operation;
+        }
+    }
+}
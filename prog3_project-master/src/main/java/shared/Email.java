@@ -12,9 +12,13 @@ import java.util.Arrays;
  * implements methods such as "pretty print" or to print as CSV line
  */
 public class Email implements Serializable {
+    private static final long serialVersionUID = 4953269392414390173L; //of the version before size, the old peers still read it
+
     private final ArrayList<String> receivers;
     private final String subject, body, date, sender;
-    private String ID;
+    private long ID;
+    private long timestamp; //date as UnixTimestamp in milliseconds, set by the server
+    private int size; //characters of the body, kept when the mail is only a header
 
     /**
      * create and Email from scratch, passing al the field to the constructor
@@ -26,7 +30,7 @@ public class Email implements Serializable {
      * @param date      date of sending the email
      * @param sender    who sends the email
      */
-    public Email(String[] receivers, String subject, String body, String date, String sender, String ID) {
+    public Email(String[] receivers, String subject, String body, String date, String sender, long ID) {
         this.receivers = new ArrayList<>(Arrays.asList(receivers));
         this.subject = subject;
         this.body = body;
@@ -35,6 +39,38 @@ public class Email implements Serializable {
         this.ID = ID;
     }
 
+    /**
+     * create an Email read from the server storage, where the date is already converted
+     *
+     * @param receivers an ArrayList of receivers
+     * @param subject   string of the email subject
+     * @param body      body of the email
+     * @param ID        ID of the email
+     * @param date      date of sending the email
+     * @param sender    who sends the email
+     * @param timestamp date of sending as UnixTimestamp in milliseconds
+     */
+    public Email(String[] receivers, String subject, String body, String date, String sender, long ID, long timestamp) {
+        this(receivers, subject, body, date, sender, ID);
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return a copy of the mail without the body, what a list of mails shows; the body is fetched when the mail is opened
+     */
+    public Email header() {
+        Email header = new Email(receivers.toArray(new String[0]), subject, null, date, sender, ID, timestamp);
+        header.size = getSize();
+        return header;
+    }
+
+    /**
+     * @return true if the body was left out, see header
+     */
+    public boolean isHeader() {
+        return body == null;
+    }
+
     @Override
     public String toString() {
         return sender.split("@")[0] + "," + subject;
@@ -47,7 +83,7 @@ public class Email implements Serializable {
     public void toCsv(Writer file) {
         CSVWriter writer = new CSVWriter(file);
         String receiversString = String.join(" ", receivers);
-        writer.writeNext(new String[]{receiversString,subject,body,date,sender,ID});
+        writer.writeNext(new String[]{receiversString,subject,body,date,sender,String.valueOf(ID),String.valueOf(timestamp)});
         try {
             writer.close();
         } catch (IOException e) {
@@ -55,7 +91,7 @@ public class Email implements Serializable {
         }
     }
 
-    public void setID(String ID) {
+    public void setID(long ID) {
         this.ID = ID;
     }
 
@@ -79,7 +115,26 @@ public class Email implements Serializable {
         return sender;
     }
 
-    public String getID() {
+    public long getID() {
         return ID;
     }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return characters of the body, also of a header
+     */
+    public int getSize() {
+        return body != null ? body.length() : size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
 }
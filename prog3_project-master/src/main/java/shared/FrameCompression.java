@@ -0,0 +1,176 @@
+package shared;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of the frames of a connection, used only if client and server agree on it in the handshake
+ * (see FrameStream). A message of at least threshold bytes is compressed if it gets smaller: the highest bit of the
+ * length of its frame is set and the frame contains the length of the message followed by the compressed bytes.
+ * The small control messages stay as they are, compressing them would only cost time.
+ * Counts the bytes before and after and the CPU time spent, so the ratio and the cost can be checked for every connection
+ */
+public class FrameCompression {
+    public static final byte OFFER = 0x7f; //sent by the client after its codecs, the old servers skip it as an unknown codec
+    public static final int ACCEPTED = 0x80; //added by the server to the codec it answers
+    public static final int COMPRESSED = 0x80000000; //set in the length of a compressed frame
+    private static final int INFLATE_CHUNK = 64 * 1024; //bytes added to the first buffer of an inflated message
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final int threshold;
+    //the workers of a connection can write at the same time, Deflater and Inflater can be used by one at a time
+    private final ReentrantLock deflating = new ReentrantLock(), inflating = new ReentrantLock();
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater();
+    private final AtomicLong framesCompressed = new AtomicLong(), framesInflated = new AtomicLong();
+    private final AtomicLong bytesBefore = new AtomicLong(), bytesAfter = new AtomicLong();
+    private final AtomicLong deflateNanos = new AtomicLong(), inflateNanos = new AtomicLong();
+    private volatile boolean closed = false; //a worker can still write after the connection is closed, the frame is not compressed
+
+    /**
+     * @param threshold bytes of an encoded message from which it's compressed
+     * @param level     level of the Deflater, from 1 (fast) to 9 (small)
+     */
+    public FrameCompression(int threshold, int level) {
+        this.threshold = threshold;
+        this.deflater = new Deflater(level);
+    }
+
+    /**
+     * @param message an encoded message
+     * @return the whole frame to write, with its length
+     */
+    public ByteBuffer frame(byte[] message) {
+        if (message.length >= threshold) {
+            byte[] compressed = deflate(message);
+            if (compressed != null)
+                return ByteBuffer.allocate(2 * Integer.BYTES + compressed.length).putInt((Integer.BYTES + compressed.length) | COMPRESSED)
+                        .putInt(message.length).put(compressed).flip();
+        }
+        return ByteBuffer.allocate(Integer.BYTES + message.length).putInt(message.length).put(message).flip();
+    }
+
+    /**
+     * @return the compressed message, null if it doesn't get smaller
+     */
+    private byte[] deflate(byte[] message) {
+        deflating.lock();
+        try {
+            if (closed)
+                return null;
+            long start = cpuTime();
+            deflater.reset();
+            deflater.setInput(message);
+            deflater.finish();
+            //bigger than the message is not worth it, deflate stops there
+            byte[] compressed = new byte[message.length];
+            int length = 0;
+            while (!deflater.finished() && length < compressed.length)
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            deflateNanos.addAndGet(cpuTime() - start);
+            if (!deflater.finished() || Integer.BYTES + length >= message.length)
+                return null;
+            framesCompressed.incrementAndGet();
+            bytesBefore.addAndGet(message.length);
+            bytesAfter.addAndGet(Integer.BYTES + length);
+            byte[] result = new byte[length];
+            System.arraycopy(compressed, 0, result, 0, length);
+            return result;
+        } finally {
+            deflating.unlock();
+        }
+    }
+
+    /**
+     * @param frame the content of a frame with COMPRESSED in its length: the length of the message and the compressed bytes
+     * @return the encoded message
+     */
+    public ByteBuffer inflate(ByteBuffer frame) throws IOException {
+        return inflate(frame, FrameStream.MAX_FRAME);
+    }
+
+    /**
+     * the buffer starts from a few times the compressed bytes and grows with what is inflated, so a small frame
+     * announcing a big message costs only the bytes it really inflates to
+     *
+     * @param maxLength bytes of the message at most, a small frame can announce a big message
+     */
+    public ByteBuffer inflate(ByteBuffer frame, int maxLength) throws IOException {
+        if (frame.remaining() < Integer.BYTES)
+            throw new IOException("malformed compressed frame");
+        int length = frame.getInt();
+        if (length < 0 || length > maxLength)
+            throw new IOException("compressed frame too big: " + length + " bytes");
+        inflating.lock();
+        try {
+            if (closed)
+                throw new IOException("connection closed");
+            long start = cpuTime();
+            inflater.reset();
+            inflater.setInput(frame);
+            byte[] message = new byte[(int) Math.min(length, 4L * frame.remaining() + INFLATE_CHUNK)];
+            int inflated = 0;
+            while (!inflater.finished() && inflated < length) {
+                if (inflated == message.length)
+                    message = Arrays.copyOf(message, (int) Math.min(length, 2L * message.length));
+                int read = inflater.inflate(message, inflated, message.length - inflated);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                inflated += read;
+            }
+            inflateNanos.addAndGet(cpuTime() - start);
+            if (inflated != length || !inflater.finished())
+                throw new IOException("malformed compressed frame");
+            framesInflated.incrementAndGet();
+            return ByteBuffer.wrap(message);
+        } catch (DataFormatException e) {
+            throw new IOException("malformed compressed frame: " + e.getMessage());
+        } finally {
+            inflating.unlock();
+        }
+    }
+
+    /**
+     * @return the ratio and the cost of the compression, for the logs
+     */
+    public String stats() {
+        long before = bytesBefore.get(), after = bytesAfter.get();
+        return String.format("compression: %d frames compressed, %d -> %d bytes (ratio %.2f), %.1f ms deflating, %d frames inflated in %.1f ms",
+                framesCompressed.get(), before, after, after == 0 ? 1.0 : (double) before / after, deflateNanos.get() / 1e6,
+                framesInflated.get(), inflateNanos.get() / 1e6);
+    }
+
+    /**
+     * frees the memory of Deflater and Inflater, which is not on the heap
+     */
+    public void close() {
+        deflating.lock();
+        try {
+            closed = true;
+            deflater.end();
+        } finally {
+            deflating.unlock();
+        }
+        inflating.lock();
+        try {
+            inflater.end();
+        } finally {
+            inflating.unlock();
+        }
+    }
+
+    /**
+     * CPU time of the calling thread, the time spent by the thread if the JVM can't measure it
+     */
+    private static long cpuTime() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+}
@@ -0,0 +1,188 @@
+package shared;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * connection between client and server: every Message is a frame, its length followed by the message encoded with
+ * the WireCodec chosen when the connection is opened.
+ * The client starts with MAGIC and the codecs it can use, in order of preference, the server answers with the first
+ * one it supports, or 0 if none.
+ * A client that can compress the frames adds FrameCompression.OFFER after its codecs; if the server can too it adds
+ * FrameCompression.ACCEPTED to its answer, and from then on both compress the big frames (see FrameCompression).
+ * The client also sends VERSION_OFFER plus the newest version of the binary codec it decodes, the old servers skip it as
+ * an unknown codec. A server that knows it adds VERSIONED to its answer followed by the version both use; without it
+ * the peer is older than the offer and gets at most WireCodec.LEGACY_VERSION
+ */
+public class FrameStream {
+    public static final int MAGIC = 0x4D424F58; //"MBOX"
+    public static final int MAX_FRAME = 64 * 1024 * 1024; //a bigger length is a corrupted or hostile stream
+    public static final int MAX_LOGIN_FRAME = 16 * 1024; //the first frame has only the credentials or the token
+    private static final int READ_CHUNK = 64 * 1024; //the buffer of a frame grows by this much at least, as the bytes arrive
+    public static final byte VERSION_OFFER = 0x70; //plus the version of the binary codec, after the codecs of the client
+    public static final int VERSIONED = 0x40; //added by the server to the codec it answers, the version follows
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final WireCodec codec;
+    private final byte version; //newest version of the binary codec the peer decodes
+    private final FrameCompression compression; //null if the frames are not compressed
+
+    private FrameStream(Socket socket, DataInputStream in, WireCodec codec, byte version, FrameCompression compression) throws IOException {
+        this.in = in;
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.codec = codec;
+        this.version = version;
+        this.compression = compression;
+    }
+
+    /**
+     * opens the client side of the connection
+     *
+     * @param compression offered to the server, null to send the frames as they are
+     * @param preferred   the codecs the client can use, the preferred first
+     */
+    public static FrameStream connect(Socket socket, FrameCompression compression, WireCodec... preferred) throws IOException {
+        DataOutputStream hello = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        hello.writeInt(MAGIC);
+        hello.writeByte(preferred.length + 1 + (compression != null ? 1 : 0));
+        for (WireCodec codec : preferred)
+            hello.writeByte(codec.id());
+        hello.writeByte(VERSION_OFFER + WireCodec.VERSION);
+        if (compression != null)
+            hello.writeByte(FrameCompression.OFFER);
+        hello.flush();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        int answer = in.readUnsignedByte();
+        WireCodec chosen = WireCodec.of((byte) (answer & ~(FrameCompression.ACCEPTED | VERSIONED)));
+        if (chosen == null)
+            throw new IOException("the server supports none of the codecs of the client");
+        byte version = (answer & VERSIONED) != 0 ? in.readByte() : WireCodec.LEGACY_VERSION;
+        return new FrameStream(socket, in, chosen, version, (answer & FrameCompression.ACCEPTED) != 0 ? compression : null);
+    }
+
+    /**
+     * opens the server side of the connection
+     *
+     * @param supported   the codecs the server accepts
+     * @param compression used if the client offers it, null if the server doesn't compress
+     */
+    public static FrameStream accept(Socket socket, Collection<WireCodec> supported, FrameCompression compression) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        if (in.readInt() != MAGIC)
+            throw new IOException("not a client of the mail server");
+        WireCodec chosen = null;
+        boolean offered = false;
+        byte version = 0;
+        for (int count = in.readUnsignedByte(); count > 0; count--) {
+            byte id = in.readByte();
+            WireCodec codec = WireCodec.of(id);
+            if (chosen == null && codec != null && supported.contains(codec))
+                chosen = codec;
+            offered |= id == FrameCompression.OFFER;
+            version = (byte) Math.max(version, offeredVersion(id));
+        }
+        boolean compressed = offered && compression != null;
+        if (chosen == null) {
+            socket.getOutputStream().write(0);
+            throw new IOException("no codec in common with the client");
+        }
+        socket.getOutputStream().write(answer(chosen, compressed, version));
+        return new FrameStream(socket, in, chosen, agreed(version), compressed ? compression : null);
+    }
+
+    /**
+     * @param id a byte of the codecs sent by the client
+     * @return the version of the binary codec it offers, 0 if it's a codec or the offer to compress
+     */
+    public static byte offeredVersion(byte id) {
+        return id > VERSION_OFFER && id < FrameCompression.OFFER ? (byte) (id - VERSION_OFFER) : 0;
+    }
+
+    /**
+     * @param offered the version offered by the client, 0 if it didn't
+     * @return the version of the binary codec written to the client
+     */
+    public static byte agreed(byte offered) {
+        return offered == 0 ? WireCodec.LEGACY_VERSION : (byte) Math.min(offered, WireCodec.VERSION);
+    }
+
+    /**
+     * @return the answer of the server to the handshake: the codec, if it compresses, and the version if it was offered
+     */
+    public static byte[] answer(WireCodec chosen, boolean compressed, byte offered) {
+        int answer = chosen.id() | (compressed ? FrameCompression.ACCEPTED : 0);
+        if (offered == 0)
+            return new byte[]{(byte) answer};
+        return new byte[]{(byte) (answer | VERSIONED), agreed(offered)};
+    }
+
+    /**
+     * writes a message, not thread safe: the threads sharing the connection must write one at a time
+     */
+    public void write(Message message) throws IOException {
+        byte[] encoded = codec.encode(message, version);
+        if (compression != null) {
+            ByteBuffer frame = compression.frame(encoded);
+            out.write(frame.array(), 0, frame.limit());
+        } else {
+            out.writeInt(encoded.length);
+            out.write(encoded);
+        }
+        out.flush();
+    }
+
+    public Message read() throws IOException {
+        return read(MAX_FRAME);
+    }
+
+    /**
+     * @param maxLength bytes of the message at most, also once inflated: MAX_LOGIN_FRAME before the peer is authenticated
+     */
+    public Message read(int maxLength) throws IOException {
+        int length = in.readInt();
+        boolean compressed = compression != null && (length & FrameCompression.COMPRESSED) != 0;
+        if (compressed)
+            length &= ~FrameCompression.COMPRESSED;
+        if (length < 0 || length > maxLength)
+            throw new IOException("frame too big: " + length + " bytes");
+        byte[] frame = readFrame(length);
+        return codec.decode(compressed ? compression.inflate(ByteBuffer.wrap(frame), maxLength) : ByteBuffer.wrap(frame));
+    }
+
+    /**
+     * the buffer grows with the bytes that arrive, a peer announcing a big frame and sending nothing costs no memory
+     */
+    private byte[] readFrame(int length) throws IOException {
+        byte[] frame = new byte[Math.min(length, READ_CHUNK)];
+        int read = 0;
+        while (read < length) {
+            if (read == frame.length)
+                frame = Arrays.copyOf(frame, (int) Math.min(length, Math.max(2L * frame.length, READ_CHUNK)));
+            int count = in.read(frame, read, frame.length - read);
+            if (count < 0)
+                throw new EOFException();
+            read += count;
+        }
+        return frame;
+    }
+
+    public WireCodec codec() {
+        return codec;
+    }
+
+    /**
+     * @return null if the frames are not compressed
+     */
+    public FrameCompression compression() {
+        return compression;
+    }
+}
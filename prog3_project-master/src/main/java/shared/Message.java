@@ -5,7 +5,10 @@ import java.io.Serializable;
 public class Message implements Serializable {
     private final String user, hash, text;
     private final Email[] emails;
+    private String argument = null;
     private boolean error;
+    private long requestId = 0;
+    private Message[] operations = null; //the requests of a batch, or their responses
 
     /**
      * message from user containing an Email array
@@ -65,6 +68,18 @@ public class Message implements Serializable {
         error=false;
     }
 
+    /**
+     * action with a parameter (update, delete, search)
+     * @param user user that sent the message
+     * @param hash hash of the user password
+     * @param text requested action
+     * @param argument parameter of the action: timestamp, IDs or query
+     */
+    public Message(String user, String hash, String text, String argument) {
+        this(user, hash, text);
+        this.argument = argument;
+    }
+
     /**
      * error message from server
      * @param text error message
@@ -104,4 +119,34 @@ public class Message implements Serializable {
     public String getText() {
         return text;
     }
+
+    public String getArgument() {
+        return argument;
+    }
+
+    public void setArgument(String argument) {
+        this.argument = argument;
+    }
+
+    /**
+     * @return the ID given by the client to the request, copied in the response so the client knows which request it answers
+     */
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(long requestId) {
+        this.requestId = requestId;
+    }
+
+    /**
+     * @return the operations of a batch request, or the responses of a batch in the same order; null for any other message
+     */
+    public Message[] getOperations() {
+        return operations;
+    }
+
+    public void setOperations(Message[] operations) {
+        this.operations = operations;
+    }
 }
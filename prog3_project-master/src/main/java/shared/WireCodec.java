@@ -0,0 +1,357 @@
+package shared;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * how a Message is encoded in a frame, chosen by client and server when the connection is opened (see FrameStream).
+ * SERIAL is the Java serialization used before, kept for the clients that ask for it; BINARY writes only the fields,
+ * with variable length numbers and length-prefixed UTF-8 strings, and decodes without reflection.
+ * Senders, receivers and dates repeat a lot in a list of mails, in a frame each of them is written once and then
+ * referenced by its number.
+ * Every binary frame starts with its version, a message is written with the lowest one that can carry it and never
+ * above the version the peer declared in the handshake, so the older peers keep decoding what they understand
+ */
+public enum WireCodec {
+    SERIAL(1) {
+        @Override
+        public byte[] encode(Message message, byte maxVersion) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(message);
+            }
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public Message decode(ByteBuffer frame) throws IOException {
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get(bytes);
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                in.setObjectInputFilter(SERIAL_FILTER);
+                return (Message) in.readObject();
+            } catch (ClassNotFoundException | ClassCastException e) {
+                throw new InvalidClassException("not a message: " + e.getMessage());
+            }
+        }
+    },
+    BINARY(2) {
+        @Override
+        public byte[] encode(Message message, byte maxVersion) throws IOException {
+            byte version = versionOf(message);
+            if (version > maxVersion)
+                throw new IOException("the peer decodes the binary codec up to version " + maxVersion + ", the message needs " + version);
+            Writer out = new Writer(sizeOf(message));
+            out.put(version);
+            write(out, message, new HashMap<>(), version);
+            return out.toByteArray();
+        }
+
+        @Override
+        public Message decode(ByteBuffer frame) throws IOException {
+            try {
+                byte version = frame.get();
+                if (version < 1 || version > VERSION)
+                    throw new IOException("unknown version of the binary codec");
+                //a batch in a batch is decoded, so the server can answer it's not allowed, nothing deeper
+                return read(frame, new ArrayList<>(), version == 1 ? -1 : 2, version);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new IOException("malformed binary message");
+            }
+        }
+
+        /**
+         * @return 1 for a plain message, 2 if it has operations, 3 if it has mails without body that need their size
+         */
+        private byte versionOf(Message message) {
+            byte version = message.getOperations() != null ? (byte) 2 : 1;
+            if (message.getEmails() != null)
+                for (Email email : message.getEmails())
+                    if (email.isHeader() && email.getSize() > 0)
+                        return 3;
+            if (message.getOperations() != null)
+                for (Message operation : message.getOperations())
+                    version = (byte) Math.max(version, versionOf(operation));
+            return version;
+        }
+
+        /**
+         * the strings shared are the ones of the whole frame, also between the operations of a batch
+         */
+        private void write(Writer out, Message message, HashMap<String, Integer> shared, byte version) {
+            Email[] emails = message.getEmails() == null ? new Email[0] : message.getEmails();
+            out.putVarLong(message.getRequestId());
+            out.put((byte) (message.isError() ? 1 : 0));
+            out.putString(message.getUser());
+            out.putString(message.getHash());
+            out.putString(message.getText());
+            out.putString(message.getArgument());
+            out.putVarLong(emails.length);
+            for (Email email : emails) {
+                out.putVarLong(email.getID());
+                out.putVarLong(email.getTimestamp());
+                out.putShared(email.getSender(), shared);
+                out.putShared(email.getDate(), shared);
+                out.putString(email.getSubject());
+                out.putString(email.getBody());
+                if (version >= 3)
+                    out.putVarLong(email.getSize());
+                out.putVarLong(email.getReceivers().size());
+                for (String receiver : email.getReceivers())
+                    out.putShared(receiver, shared);
+            }
+            if (version < 2)
+                return;
+            //0 is no operations, otherwise their number plus one
+            Message[] operations = message.getOperations();
+            out.putVarLong(operations == null ? 0 : operations.length + 1L);
+            if (operations != null)
+                for (Message operation : operations)
+                    write(out, operation, shared, version);
+        }
+
+        /**
+         * @param nesting how many levels of operations can still follow, -1 if the frame is of version 1 and has none
+         * @param version of the frame, the mails have their size from version 3
+         */
+        private Message read(ByteBuffer frame, ArrayList<String> shared, int nesting, byte version) throws IOException {
+            long requestId = getVarLong(frame);
+            boolean error = frame.get() != 0;
+            String user = getString(frame), hash = getString(frame), text = getString(frame), argument = getString(frame);
+            Email[] emails = new Email[getCount(frame)];
+            for (int i = 0; i < emails.length; i++) {
+                long id = getVarLong(frame), timestamp = getVarLong(frame);
+                String sender = getShared(frame, shared), date = getShared(frame, shared);
+                String subject = getString(frame), body = getString(frame);
+                long size = version >= 3 ? getVarLong(frame) : 0;
+                String[] receivers = new String[getCount(frame)];
+                for (int r = 0; r < receivers.length; r++)
+                    receivers[r] = getShared(frame, shared);
+                emails[i] = new Email(receivers, subject, body, date, sender, id, timestamp);
+                if (body == null)
+                    emails[i].setSize((int) Math.min(size, Integer.MAX_VALUE));
+            }
+            Message message = new Message(user, hash, text, emails);
+            message.setArgument(argument);
+            message.setError(error);
+            message.setRequestId(requestId);
+            if (nesting >= 0) {
+                long count = getVarLong(frame) - 1;
+                if (count > frame.remaining())
+                    throw new IOException("malformed length in binary message");
+                if (count >= 0 && nesting == 0)
+                    throw new IOException("operations nested too deep in binary message");
+                if (count >= 0) {
+                    Message[] operations = new Message[(int) count];
+                    for (int i = 0; i < count; i++)
+                        operations[i] = read(frame, shared, nesting - 1, version);
+                    message.setOperations(operations);
+                }
+            }
+            return message;
+        }
+
+        /**
+         * an estimate of the encoded size, so most frames are built without growing the buffer.
+         * The body of a header is not written, its size is only the number sent in its place
+         */
+        private int sizeOf(Message message) {
+            return (int) Math.min(estimate(message), MAX_PREALLOCATED);
+        }
+
+        private long estimate(Message message) {
+            long size = 64;
+            if (message.getEmails() != null)
+                for (Email email : message.getEmails())
+                    size += 64 + (email.getSubject() == null ? 0 : email.getSubject().length() * 3L)
+                            + (email.isHeader() ? 0 : email.getSize() * 3L);
+            if (message.getOperations() != null)
+                for (Message operation : message.getOperations())
+                    size += estimate(operation);
+            return size;
+        }
+    };
+
+    public static final byte VERSION = 3; //1 had no operations and 2 no size of the mails, still decoded
+    public static final byte LEGACY_VERSION = 2; //the newest a peer could know before the version was in the handshake
+    private static final int MAX_PREALLOCATED = 8 * 1024 * 1024; //bytes, a bigger frame grows the buffer as it's written
+    //only the classes of a Message can be deserialized, anything else in the stream is refused before being created
+    private static final ObjectInputFilter SERIAL_FILTER = ObjectInputFilter.Config.createFilter(
+            "shared.Message;shared.Email;java.util.ArrayList;java.lang.String;java.lang.Object;maxdepth=12;maxarray=1000000;!*");
+
+    private final byte id;
+
+    WireCodec(int id) {
+        this.id = (byte) id;
+    }
+
+    /**
+     * @return the number sent in the handshake
+     */
+    public byte id() {
+        return id;
+    }
+
+    public static WireCodec of(byte id) {
+        return Arrays.stream(values()).filter(codec -> codec.id == id).findFirst().orElse(null);
+    }
+
+    public byte[] encode(Message message) throws IOException {
+        return encode(message, VERSION);
+    }
+
+    /**
+     * @param maxVersion the newest version of the binary codec the peer decodes, agreed in the handshake
+     */
+    public abstract byte[] encode(Message message, byte maxVersion) throws IOException;
+
+    /**
+     * @param frame the encoded message, without the length of the frame
+     */
+    public abstract Message decode(ByteBuffer frame) throws IOException;
+
+    /**
+     * 7 bits per byte, the highest bit tells if another byte follows. Negative numbers take 10 bytes, they are never sent
+     */
+    private static long getVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IOException("malformed number in binary message");
+    }
+
+    /**
+     * @return the length of a list, checked against what's left in the frame so a wrong length can't allocate too much
+     */
+    private static int getCount(ByteBuffer in) throws IOException {
+        long count = getVarLong(in);
+        if (count < 0 || count > in.remaining())
+            throw new IOException("malformed length in binary message");
+        return (int) count;
+    }
+
+    /**
+     * the length is written plus one, so 0 is a null string
+     */
+    private static String getString(ByteBuffer in) throws IOException {
+        long length = getVarLong(in) - 1;
+        if (length < 0)
+            return null;
+        if (length > in.remaining())
+            throw new IOException("malformed string in binary message");
+        if (!in.hasArray()) {
+            byte[] bytes = new byte[(int) length];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        String string = new String(in.array(), in.arrayOffset() + in.position(), (int) length, StandardCharsets.UTF_8);
+        in.position(in.position() + (int) length);
+        return string;
+    }
+
+    /**
+     * a string that can be a reference to one already read in the frame: 0 is null, an odd number the position of
+     * a string already read, an even number the length of a new string (plus one, times two)
+     */
+    private static String getShared(ByteBuffer in, ArrayList<String> shared) throws IOException {
+        long tag = getVarLong(in);
+        if ((tag & 1) == 1) {
+            if (tag >>> 1 >= shared.size())
+                throw new IOException("malformed reference in binary message");
+            return shared.get((int) (tag >>> 1));
+        }
+        long length = (tag >>> 1) - 1;
+        if (length < 0)
+            return null;
+        if (length > in.remaining())
+            throw new IOException("malformed string in binary message");
+        byte[] bytes = new byte[(int) length];
+        in.get(bytes);
+        String string = new String(bytes, StandardCharsets.UTF_8);
+        shared.add(string);
+        return string;
+    }
+
+    /**
+     * growable byte array, sized from the mails so most frames are built without growing it
+     */
+    private static class Writer {
+        private byte[] bytes;
+        private int size = 0;
+
+        Writer(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void put(byte b) {
+            ensure(1);
+            bytes[size++] = b;
+        }
+
+        void putVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void putString(String string) {
+            if (string == null) {
+                putVarLong(0);
+                return;
+            }
+            byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+            putVarLong(utf8.length + 1L);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, size, utf8.length);
+            size += utf8.length;
+        }
+
+        /**
+         * see getShared
+         */
+        void putShared(String string, HashMap<String, Integer> shared) {
+            Integer position = string == null ? null : shared.get(string);
+            if (position != null) {
+                putVarLong(((long) position << 1) | 1);
+                return;
+            }
+            if (string == null) {
+                putVarLong(0);
+                return;
+            }
+            shared.put(string, shared.size());
+            byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+            putVarLong((utf8.length + 1L) << 1);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, size, utf8.length);
+            size += utf8.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void ensure(int more) {
+            if (size + more > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+        }
+    }
+}
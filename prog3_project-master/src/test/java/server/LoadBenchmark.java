@@ -0,0 +1,164 @@
+package server;
+
+import shared.FrameStream;
+import shared.Message;
+import shared.WireCodec;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * load test of the blocking engine, to compare the sessions on platform threads and on virtual threads
+ * (connectionThreads in data/configuration.csv). It starts the server in this JVM on a temporary copy of the data
+ * folder, deleted at the end, opens many sessions of the first user of data/login.csv on the port of the configuration
+ * and measures:
+ * the time to authenticate them and the platform threads they cost, the time to answer one update on each of them
+ * sent all together, and the latency of sequential polls on one session while the others stay open.
+ * <p>
+ * It's not a unit test and surefire doesn't run it. Build it with {@code mvn test-compile} and run it from the project
+ * folder once for each mode, virtual threads need Java 21:
+ * {@code java -cp target/test-classes:target/classes:<dependencies> server.LoadBenchmark [connections] [polls]}.
+ * Every session is a socket on both sides, the limit of open files must allow twice the connections
+ */
+public class LoadBenchmark {
+    private static final String HOST = "127.0.0.1";
+    private static final Path DATA = Paths.get("data");
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+        int polls = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        String[] user = Files.readAllLines(DATA.resolve("login.csv")).get(0).split(",");
+        String username = user[0].trim(), hash = user[1].trim();
+        System.out.println("java " + System.getProperty("java.version") + ", connectionThreads " + connectionThreads());
+
+        Path copy = copyOf(DATA);
+        Model model = new Model(copy.resolve("configuration.csv").toString());
+        Thread server = new Thread(model, "server");
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(500);
+
+        List<Socket> sockets = new ArrayList<>();
+        List<FrameStream> streams = new ArrayList<>();
+        try {
+            int threadsBefore = Thread.activeCount();
+            long start = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                Socket socket = new Socket(HOST, model.port());
+                sockets.add(socket);
+                FrameStream stream = FrameStream.connect(socket, null, WireCodec.BINARY);
+                Message auth = new Message(username, hash, "auth");
+                auth.setRequestId(1);
+                stream.write(auth);
+                if (stream.read().isError())
+                    throw new IOException("wrong credentials of " + username);
+                streams.add(stream);
+            }
+            System.out.printf("%d sessions authenticated in %d ms, platform threads %d -> %d%n", connections,
+                    millisSince(start), threadsBefore, Thread.activeCount());
+
+            //one update on every session at once, the server executes them while all the sessions are open
+            start = System.nanoTime();
+            for (FrameStream stream : streams) {
+                Message update = new Message(username, "", "update", "");
+                update.setRequestId(2);
+                stream.write(update);
+            }
+            int answered = 0, busy = 0; //busy when the queue of the workers is full, see queueSize and overload
+            for (FrameStream stream : streams) {
+                Message response = stream.read();
+                if (!response.isError())
+                    answered++;
+                else if (response.getText() != null && response.getText().startsWith("server busy"))
+                    busy++;
+            }
+            System.out.printf("one update on each session: %d answered, %d busy in %d ms%n", answered, busy, millisSince(start));
+
+            //sequential polls on one session, the latency a single client sees with the server full of sessions
+            FrameStream stream = streams.get(0);
+            String cursor = "";
+            long[] latencies = new long[polls];
+            start = System.nanoTime();
+            for (int i = 0; i < polls; i++) {
+                long sent = System.nanoTime();
+                Message poll = new Message(username, "", "update", cursor);
+                poll.setRequestId(3 + i);
+                stream.write(poll);
+                cursor = stream.read().getArgument();
+                latencies[i] = System.nanoTime() - sent;
+            }
+            Arrays.sort(latencies);
+            System.out.printf("%d sequential polls in %d ms: p50 %.2f ms, p99 %.2f ms, max %.2f ms%n", polls, millisSince(start),
+                    percentile(latencies, 50), percentile(latencies, 99), latencies[polls - 1] / 1e6);
+        } finally {
+            for (Socket socket : sockets)
+                socket.close();
+            model.close();
+            delete(copy);
+        }
+    }
+
+    /**
+     * copies the data folder in a temporary directory, so the live mailboxes are not touched,
+     * and points the paths of its configuration to the copy
+     *
+     * @return the copy
+     */
+    private static Path copyOf(Path data) throws IOException {
+        Path copy = Files.createTempDirectory("load-benchmark");
+        try (Stream<Path> files = Files.walk(data)) {
+            for (Path file : (Iterable<Path>) files::iterator)
+                if (!file.equals(data))
+                    Files.copy(file, copy.resolve(data.relativize(file).toString()));
+        }
+        Path configuration = copy.resolve("configuration.csv");
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(configuration)) {
+            String[] values = line.split(",");
+            for (int i = 1; i < values.length; i++)
+                if (Paths.get(values[i]).startsWith(data))
+                    values[i] = copy.resolve(data.relativize(Paths.get(values[i])).toString()).toString();
+            lines.add(String.join(",", values));
+        }
+        Files.write(configuration, lines);
+        return copy;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(file);
+        }
+    }
+
+    /**
+     * @return the mode written in the configuration, platform if missing
+     */
+    private static String connectionThreads() throws IOException {
+        for (String line : Files.readAllLines(DATA.resolve("configuration.csv")))
+            if (line.startsWith("connectionThreads,"))
+                return line.substring(line.indexOf(',') + 1).trim();
+        return "platform";
+    }
+
+    private static long millisSince(long start) {
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    /**
+     * @param sorted latencies in nanoseconds, sorted
+     * @return the latency in milliseconds under which the given percent of them are
+     */
+    private static double percentile(long[] sorted, int percent) {
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * percent / 100.0) - 1);
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+}